@@ -1,9 +1,13 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -11,6 +15,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -25,6 +30,8 @@ public class Catalog {
 //    private List<Table> tables;
     private final ConcurrentHashMap<Integer, Table> id2table;// 表id与表的映射
     private final ConcurrentHashMap<String, Table> name2table;// 表名字与表的映射
+    private final ConcurrentHashMap<Integer, List<SecondaryIndex>> table2indexes;// 表id与表上二级索引的映射
+    private final ConcurrentHashMap<Integer, SecondaryIndex> id2index;// 索引文件id与索引的映射
 
     public class Table {
         private DbFile file;
@@ -80,6 +87,8 @@ public class Catalog {
 //        this.tables = new ArrayList<>();
         this.id2table = new ConcurrentHashMap<>();
         this.name2table = new ConcurrentHashMap<>();
+        this.table2indexes = new ConcurrentHashMap<>();
+        this.id2index = new ConcurrentHashMap<>();
     }
 
     /**
@@ -112,7 +121,17 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
         if(name2table.containsKey(name)) {
-            id2table.remove(name2table.get(name).getFile().getId());
+            DbFile oldFile = name2table.get(name).getFile();
+            int oldId = oldFile.getId();
+            id2table.remove(oldId);
+            // 被替换的表上的索引不再适用于新的表
+            if(oldId != file.getId()) {
+                removeIndexes(oldId);
+            }
+            // 被替换的文件不会再通过catalog访问，关掉它打开的文件，不要等GC
+            if(oldFile != file) {
+                closeFile(oldFile);
+            }
         }
         Table table = new Table(file, name, pkeyField);
         //当调用 put 方法时，如果指定的键已经存在，则会替换原有键对应的值。这意味着原有键对应的值会被新的值所替代
@@ -135,6 +154,54 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index to the catalog. The index is maintained by
+     * {@link simpledb.storage.BufferPool#insertTuple} and
+     * {@link simpledb.storage.BufferPool#deleteTuple} from now on, so it must
+     * already hold an entry for every tuple in its table.
+     * @param index the index to add; its table must be a HeapFile in this catalog
+     */
+    public void addIndex(SecondaryIndex index) {
+        if(!(getDatabaseFile(index.getTableId()) instanceof HeapFile)) {
+            throw new IllegalArgumentException("secondary indexes need a HeapFile table");
+        }
+        id2index.put(index.getFile().getId(), index);
+        table2indexes.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table, or an empty list if
+     * it has none.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = table2indexes.get(tableid);
+        return indexes == null ? Collections.emptyList() : Collections.unmodifiableList(indexes);
+    }
+
+    private void removeIndexes(int tableid) {
+        List<SecondaryIndex> indexes = table2indexes.remove(tableid);
+        if(indexes != null) {
+            for(SecondaryIndex index : indexes) {
+                id2index.remove(index.getFile().getId());
+                closeFile(index.getFile());
+            }
+        }
+    }
+
+    /**
+     * Close the files of a DbFile dropped from the catalog. A failure to close
+     * is reported but does not stop the catalog from dropping it.
+     */
+    private void closeFile(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -176,12 +243,15 @@ public class Catalog {
         if(id2table.containsKey(tableid)) {
             return id2table.get(tableid).getFile().getTupleDesc();
         }
+        if(id2index.containsKey(tableid)) {
+            return id2index.get(tableid).getFile().getTupleDesc();
+        }
         throw new NoSuchElementException();
     }
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
+     * specified table, or of the secondary index with that file id.
      * @param tableid The id of the table, as specified by the DbFile.getId()
      *     function passed to addTable
      */
@@ -190,6 +260,10 @@ public class Catalog {
         if(id2table.containsKey(tableid)) {
             return id2table.get(tableid).getFile();
         }
+        // 索引的页也通过缓冲池读写，要能按文件id找到索引文件
+        if(id2index.containsKey(tableid)) {
+            return id2index.get(tableid).getFile();
+        }
         return null;
     }
 
@@ -217,10 +291,45 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for(Table table : id2table.values()) {
+            closeFile(table.getFile());
+        }
+        for(SecondaryIndex index : id2index.values()) {
+            closeFile(index.getFile());
+        }
         id2table.clear();
         name2table.clear();
+        table2indexes.clear();
+        id2index.clear();
     }
     
+    /**
+     * Opens the secondary index on a field of a table read by loadSchema, stored in
+     * baseFolder/table_field.idx, and adds it to the catalog. A new index file is
+     * filled from the table in a transaction of its own; an existing one is assumed
+     * to be up to date with the table.
+     */
+    private void loadIndex(HeapFile table, String tableName, String field, String baseFolder) throws IOException {
+        String indexName = tableName + "_" + field;
+        File f = new File(baseFolder + "/" + indexName + ".idx");
+        boolean build = !f.exists() || f.length() == 0;
+        int keyField = table.getTupleDesc().fieldNameToIndex(field);
+        BTreeFile indexFile = new BTreeFile(f, 0, SecondaryIndex.indexTupleDesc(table.getTupleDesc(), keyField));
+        SecondaryIndex index = new SecondaryIndex(indexName, table.getId(), keyField, indexFile);
+        addIndex(index);
+        if (build && table.numPages() > 0) {
+            Transaction t = new Transaction();
+            t.start();
+            try {
+                Database.getBufferPool().bulkLoad(t.getId(), indexFile.getId(), index.tableEntries(t.getId()), 1.0);
+                t.commit();
+            } catch (DbException | TransactionAbortedException e) {
+                t.abort();
+                throw new IOException("could not build index " + indexName, e);
+            }
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
@@ -240,6 +349,7 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<>();
                 ArrayList<Type> types = new ArrayList<>();
                 String primaryKey = "";
+                ArrayList<String> indexed = new ArrayList<>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -251,11 +361,14 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    // 一个字段可以同时是主键和二级索引，比如 id int pk index
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("index"))
+                            indexed.add(els2[0].trim());
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -266,6 +379,10 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (String field : indexed) {
+                    loadIndex(tabHf, name, field, baseFolder);
+                    System.out.println("Added index on " + name + "." + field);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -4,6 +4,7 @@ import simpledb.storage.StringField;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.io.*;
 
@@ -28,6 +29,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) {
+            return new IntField(buf.getInt());
+        }
+
     }, STRING_TYPE() {
         @Override
         // 4个字节用来存储长度信息
@@ -47,6 +53,16 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) {
+            int start = buf.position();
+            int strLen = buf.getInt();
+            byte[] bs = new byte[strLen];
+            buf.get(bs);
+            buf.position(start + getLen());
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -65,4 +81,13 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * Read a field of this type at the current position of buf, leaving buf
+   * positioned right after it (getLen() bytes further).
+   *
+   * @return a Field object of the same type as this object
+   * @param buf The buffer to read from
+   */
+    public abstract Field parse(ByteBuffer buf);
+
 }
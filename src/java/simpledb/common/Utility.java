@@ -109,6 +109,7 @@ public class Utility {
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
         fos.close();
+        FreeSpaceMap.discard(f);
 
         HeapFile hf = openHeapFile(cols, f);
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
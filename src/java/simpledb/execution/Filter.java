@@ -52,6 +52,10 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        // 子节点是SeqScan时把条件下推下去，被过滤掉的tuple就不用解码了
+        if (child instanceof SeqScan) {
+            ((SeqScan) child).setPredicate(predicate);
+        }
         child.open();
         while (child.hasNext()) {
             Tuple next = child.next();
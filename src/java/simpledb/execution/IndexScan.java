@@ -0,0 +1,158 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that looks up the tuples of a HeapFile table
+ * matching a predicate in a secondary index on one of its fields, and fetches
+ * each of them from the table by its RecordId. The tuples are returned in the
+ * order of the indexed field.
+ * <p>
+ * The index has no old versions, so it cannot be read as of a snapshot: an
+ * IndexScan fails to open in a snapshot transaction, and the optimizer never
+ * plans one for it.
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId transactionId;
+    private final SecondaryIndex index;
+    private final IndexPredicate ipred;
+    private final String tableAlias;
+    private DbFileIterator entries;
+    private Tuple next;
+
+    /**
+     * Creates a scan of the tuples of the indexed table matching ipred as a
+     * part of the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the secondary index to look the tuples up in.
+     * @param ipred
+     *            the predicate on the indexed field; if null, every tuple is
+     *            returned in the order of the indexed field.
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields with name tableAlias.fieldName, as in SeqScan.
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred, String tableAlias) {
+        this.transactionId = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.tableAlias = tableAlias;
+    }
+
+    public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+        this(tid, index, ipred, Database.getCatalog().getTableName(index.getTableId()));
+    }
+
+    /**
+     * @return the name of the indexed table in the catalog of the database
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans.
+     */
+    public String getAlias() {
+        return this.tableAlias;
+    }
+
+    public SecondaryIndex getIndex() {
+        return this.index;
+    }
+
+    public IndexPredicate getIndexPredicate() {
+        return this.ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        // 索引没有多版本，按当前状态读出来的RecordId和快照里的记录对不上
+        if (Database.getBufferPool().isSnapshot(transactionId))
+            throw new DbException("an IndexScan cannot run in a snapshot transaction");
+        this.entries = index.entries(transactionId, ipred);
+        this.entries.open();
+        this.next = null;
+    }
+
+    /**
+     * Returns the TupleDesc of the indexed table with field names prefixed
+     * with the tableAlias string from the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc tupleDesc = Database.getCatalog().getTupleDesc(index.getTableId());
+        int itemLen = tupleDesc.getItemLength();
+        Type[] types = new Type[itemLen];
+        String[] fieldNames = new String[itemLen];
+        for(int i=0;i<itemLen;i++){
+            types[i] = tupleDesc.getFieldType(i);
+            fieldNames[i] = this.tableAlias +"."+ tupleDesc.getFieldName(i);
+        }
+        return new TupleDesc(types,fieldNames);
+    }
+
+    /**
+     * Fetch the table tuple the next index entry points to, or null when the
+     * entries are exhausted.
+     */
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (entries.hasNext()) {
+            RecordId rid = index.recordId(entries.next());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(transactionId, rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = page.getTuple(rid.getTupleNumber());
+            // 索引项和记录是在同一个事务里一起增删的，正常情况下槽位一定有记录
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (entries == null)
+            throw new IllegalStateException("iterator is closed");
+        if (next == null)
+            next = fetchNext();
+        return next != null;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple result = next;
+        next = null;
+        return result;
+    }
+
+    public void close() {
+        if (entries != null)
+            entries.close();
+        entries = null;
+        next = null;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        entries.rewind();
+        next = null;
+    }
+}
@@ -7,6 +7,7 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -25,6 +26,8 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    // Filter下推过来的条件，扫描HeapFile时在页上直接过滤
+    private Predicate predicate;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -85,6 +88,18 @@ public class SeqScan implements OpIterator {
         this.tableAlias  = tableAlias;
     }
 
+    /**
+     * Only return tuples that satisfy p. For a HeapFile the predicate is
+     * evaluated on the page before the tuple is decoded; other files are
+     * scanned unfiltered, so callers must still apply p themselves. Takes
+     * effect at the next open.
+     *
+     * @param p the predicate, or null to scan every tuple
+     */
+    public void setPredicate(Predicate p) {
+        this.predicate = p;
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
@@ -92,7 +107,12 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(this.tableId);
-        DbFileIterator iterator = dbFile.iterator(this.transactionId);
+        DbFileIterator iterator;
+        if (predicate != null && dbFile instanceof HeapFile) {
+            iterator = ((HeapFile) dbFile).iterator(this.transactionId, predicate);
+        } else {
+            iterator = dbFile.iterator(this.transactionId);
+        }
         this.dbFileIterator = iterator;
         this.dbFileIterator.open();
     }
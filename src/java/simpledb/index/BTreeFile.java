@@ -5,6 +5,7 @@ import java.util.*;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
@@ -32,6 +33,25 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	// the channel stays open until close(); the file length is asked from it (an fstat) on every call
+	private final DbFileChannel channel;
+
+	// UPDATE日志里B+树各种页的类型编号；leaf和internal页还需要从catalog里找到索引的关键字字段
+	static {
+		LogFile.PageIdFactory ids = id -> new BTreePageId(id[0], id[1], id[2]);
+		LogFile.registerPageType(2, BTreeLeafPage.class, ids, (id, data) ->
+				new BTreeLeafPage((BTreePageId) id, data, keyFieldOf(id.getTableId())));
+		LogFile.registerPageType(3, BTreeInternalPage.class, ids, (id, data) ->
+				new BTreeInternalPage((BTreePageId) id, data, keyFieldOf(id.getTableId())));
+		LogFile.registerPageType(4, BTreeHeaderPage.class, ids, (id, data) ->
+				new BTreeHeaderPage((BTreePageId) id, data));
+		LogFile.registerPageType(5, BTreeRootPtrPage.class, ids, (id, data) ->
+				new BTreeRootPtrPage((BTreePageId) id, data));
+	}
+
+	private static int keyFieldOf(int tableid) {
+		return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +66,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new DbFileChannel(f);
 	}
 
 	/**
@@ -77,6 +98,11 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		channel.close();
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -87,49 +113,50 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				int retval = channel.read(pageBuf, 0);
+				if (retval == -1) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BTreeRootPtrPage.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
+				if (retval == -1) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BufferPool.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the position in the file of the page with the given number.
+	 * Page 0 is the root pointer page; the other pages follow it.
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,15 +168,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(page.getId().getPageNumber()));
 		}
 	}
 	
@@ -158,7 +181,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((channel.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -194,32 +221,39 @@ public class BTreeFile implements DbFile {
 			return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
 		}
 		BTreeInternalPage page = (BTreeInternalPage) getPage(tid,dirtypages,pid,perm);
-		Iterator<BTreeEntry> iterator = page.iterator();
-		//2. 如果filed为空，找到最左边的节点
-		if(f==null){
-			if(iterator.hasNext()){
-				return findLeafPage(tid,dirtypages,iterator.next().getLeftChild(),perm,f);
-			}
+//		Iterator<BTreeEntry> iterator = page.iterator();
+//		//2. 如果filed为空，找到最左边的节点
+//		if(f==null){
+//			if(iterator.hasNext()){
+//				return findLeafPage(tid,dirtypages,iterator.next().getLeftChild(),perm,f);
+//			}
+//			return null;
+//		}
+//
+//		BTreeEntry next = null;
+//		//3. 否则，内部节点查找符合条件的entry，并递归查找
+//		while(iterator.hasNext()){
+//			next =  iterator.next();
+//			Field key = next.getKey();
+//			//当有重复值的时候 节点分裂有可能一半在左边一半在右边，所以是小于等于
+//			if(f.compare(Op.LESS_THAN_OR_EQ,key)){
+//				return findLeafPage(tid,dirtypages,next.getLeftChild(),perm,f);
+//			}
+//		}
+//
+//		//最后一个entry的右子节点
+//		if(next!=null){
+//			return findLeafPage(tid,dirtypages,next.getRightChild(),perm,f);
+//		}
+//
+//		return null;
+		//2. 二分查找第一个key >= f的entry，走它的左子节点；f为空时走最左边的子节点。
+		//当有重复值的时候 节点分裂有可能一半在左边一半在右边，所以是大于等于
+		BTreePageId child = page.findChild(f);
+		if(child == null){
 			return null;
 		}
-
-		BTreeEntry next = null;
-		//3. 否则，内部节点查找符合条件的entry，并递归查找
-		while(iterator.hasNext()){
-			next =  iterator.next();
-			Field key = next.getKey();
-			//当有重复值的时候 节点分裂有可能一半在左边一半在右边，所以是小于等于
-			if(f.compare(Op.LESS_THAN_OR_EQ,key)){
-				return findLeafPage(tid,dirtypages,next.getLeftChild(),perm,f);
-			}
-		}
-
-		//最后一个entry的右子节点
-		if(next!=null){
-			return findLeafPage(tid,dirtypages,next.getRightChild(),perm,f);
-		}
-
-		return null;
+		return findLeafPage(tid,dirtypages,child,perm,f);
 	}
 	
 	/**
@@ -239,6 +273,78 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
 	}
 
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f, like
+	 * findLeafPage, but by latch crabbing: the locks on the pages along the path are only
+	 * held for the descent and released, once the lock on the child is granted, as soon as
+	 * no split below can reach them. With internalPerm READ_ONLY that is right away, so
+	 * internal pages are only latched and concurrent writers to different leaves do not
+	 * serialize on the root. With READ_WRITE a page stays locked while every page below
+	 * it on the path is full, because a split of the leaf would propagate up to it.
+	 * Pages tid held a lock on before the descent keep their locks.
+	 * 
+	 * Latches are shared page locks taken through the BufferPool rather than a separate
+	 * mechanism: a page changed by a running transaction is restored from its before image
+	 * if the transaction aborts, so a descent must still wait for the writer of a page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the page to start the descent at, usually the root
+	 * @param from - a page the caller locked to find pid, to be released like a page on the
+	 *        path, or null
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param internalPerm - the permissions with which to latch the internal pages
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @param heldBefore - the pages on the path tid held a lock on before it read them;
+	 *        the caller adds from if it held it before, and the descent adds the others
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage crabToLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid,
+			BTreePageId from, Permissions perm, Permissions internalPerm, Field f, Set<PageId> heldBefore)
+					throws DbException, TransactionAbortedException {
+		// 还锁着的祖先，分裂可能会改到它们
+		List<BTreePageId> latched = new ArrayList<>();
+		if(from != null) {
+			latched.add(from);
+		}
+		while(true) {
+			boolean leaf = pid.pgcateg() == BTreePageId.LEAF;
+			if(Database.getBufferPool().holdsLock(tid, pid)) {
+				heldBefore.add(pid);
+			}
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, leaf ? perm : internalPerm);
+			// 子节点的锁拿到以后，如果它不满，分裂不会传到上面，祖先的锁都可以放开
+			if(internalPerm == Permissions.READ_ONLY || page.getNumEmptySlots() > 0) {
+				for(BTreePageId ancestor : latched) {
+					unlatch(tid, dirtypages, ancestor, heldBefore);
+				}
+				latched.clear();
+			}
+			if(leaf) {
+				return (BTreeLeafPage) page;
+			}
+			latched.add(pid);
+			pid = ((BTreeInternalPage) page).findChild(f);
+			if(pid == null) {
+				for(BTreePageId ancestor : latched) {
+					unlatch(tid, dirtypages, ancestor, heldBefore);
+				}
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Release the lock on a page that was only taken to descend through it, unless tid
+	 * held it before.
+	 */
+	void unlatch(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Set<PageId> heldBefore) {
+		if(!heldBefore.contains(pid)) {
+			dirtypages.remove(pid);
+			Database.getBufferPool().unsafeReleasePage(tid, pid);
+		}
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -287,7 +393,10 @@ public class BTreeFile implements DbFile {
 		//2. 获取当前要插入的父节点，并插入新节点
 //		Tuple up = iterator.next();
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
-		BTreeEntry insertEntry = new BTreeEntry(up.getField(keyField), page.getId(), newPage.getId());
+//		BTreeEntry insertEntry = new BTreeEntry(up.getField(keyField), page.getId(), newPage.getId());
+		// 父节点里只放能分开两页的最短的key
+		Field separator = separator(page.reverseIterator().next().getField(keyField), up.getField(keyField));
+		BTreeEntry insertEntry = new BTreeEntry(separator, page.getId(), newPage.getId());
 		parentPage.insertEntry(insertEntry);
 		//3. 设置节点间的关系
 		// page newPage rightSibling
@@ -308,12 +417,38 @@ public class BTreeFile implements DbFile {
 		dirtypages.put(page.getId(),page);
 		dirtypages.put(newPage.getId(),newPage);
 
-		//5. 返回要插入field的页
-		if (field.compare(Op.GREATER_THAN_OR_EQ, up.getField(keyField))) {
+		//5. 返回要插入field的页，分隔键截短以后，大于分隔键的field也要插到右边
+//		if (field.compare(Op.GREATER_THAN_OR_EQ, up.getField(keyField))) {
+		if (field.compare(Op.GREATER_THAN_OR_EQ, up.getField(keyField)) || field.compare(Op.GREATER_THAN, separator)) {
 			return newPage;
 		}
 		return page;
 	}
+
+	/**
+	 * Returns the shortest key that can separate two adjacent leaf pages: a key greater
+	 * than the last key on the left page and no greater than the first key on the right
+	 * page. For string keys this is the shortest prefix of the right key that is greater
+	 * than the left key, which lets more entries fit on an internal page; other keys are
+	 * returned unchanged.
+	 * 
+	 * @param left - the last key on the left page
+	 * @param right - the first key on the right page
+	 * @return the key for the parent entry between the two pages
+	 */
+	static Field separator(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int prefix = 0;
+		while(prefix < l.length() && l.charAt(prefix) == r.charAt(prefix)) {
+			prefix++;
+		}
+		// l < r，所以r在第一个不同的字符处更大，或者l是r的前缀
+		return new StringField(r.substring(0, prefix + 1), Type.STRING_LEN);
+	}
 	
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
@@ -533,20 +668,39 @@ public class BTreeFile implements DbFile {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		Set<PageId> heldBefore = new HashSet<>();
+		if(Database.getBufferPool().holdsLock(tid, rootPtrId)) {
+			heldBefore.add(rootPtrId);
+		}
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
+			heldBefore.add(rootPtrId);
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+//		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// 乐观地往下走：内部节点只加共享锁，拿到子节点的锁就放开，只有叶子页加排他锁
+		BTreeLeafPage leafPage = crabToLeafPage(tid, dirtypages, rootId, rootPtrId,
+				Permissions.READ_WRITE, Permissions.READ_ONLY, t.getField(keyField), heldBefore);
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			// 叶子页满了要分裂：放开它，从根重新往下走，这次一路加排他锁，只留下分裂会改到的页
+			unlatch(tid, dirtypages, leafPage.getId(), heldBefore);
+			if(Database.getBufferPool().holdsLock(tid, rootPtrId)) {
+				heldBefore.add(rootPtrId);
+			}
+			rootPtr = getRootPtrPage(tid, dirtypages);
+			leafPage = crabToLeafPage(tid, dirtypages, rootPtr.getRootId(), rootPtrId,
+					Permissions.READ_WRITE, Permissions.READ_WRITE, t.getField(keyField), heldBefore);
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			}
 		}
 
 		// insert the tuple into the leaf page
@@ -554,12 +708,205 @@ public class BTreeFile implements DbFile {
 
         return new ArrayList<>(dirtypages.values());
 	}
+
+	/**
+	 * Load the tuples of an iterator into this BTreeFile bottom-up instead of inserting
+	 * them one at a time. The tuples are sorted on the key field, spilling sorted runs to
+	 * temporary files if there are more than sortPages leaf pages' worth of them. The
+	 * leaf pages are then packed to fillFactor of their capacity and the internal pages
+	 * full, and the pages are appended to the file level by level, each written once with
+	 * its sibling and parent pointers already set. A fill factor below one half leaves
+	 * pages that the delete path will merge.
+	 * 
+	 * The new pages bypass the BufferPool and the log: they are forced to disk before the
+	 * root pointer is switched to the new root, and only that change (and the header page
+	 * freeing the old empty root) is logged. If tid aborts the root pointer is restored and
+	 * the new pages are left unreachable at the end of the file.
+	 * 
+	 * The tree must be empty. The root pointer page stays locked for the rest of tid, so
+	 * no other transaction sees the tree while it is loaded.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to load; the iterator is opened and closed by this method
+	 * @param fillFactor - the fraction of each leaf page to fill, in (0, 1]
+	 * @param sortPages - the number of leaf pages' worth of tuples to sort in memory
+	 * @return a list of all pages in the BufferPool that were dirtied by this operation
+	 * @see BufferPool#bulkLoad(TransactionId, int, DbFileIterator, double)
+	 * 
+	 * @throws DbException if the tree is not empty
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public List<Page> bulkLoad(TransactionId tid, DbFileIterator tuples, double fillFactor, int sortPages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		}
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		getRootPtrPage(tid, dirtypages);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+		BTreePageId oldRootId = rootPtr.getRootId();
+		if(oldRootId != null && (oldRootId.pgcateg() != BTreePageId.LEAF
+				|| ((BTreeLeafPage) getPage(tid, dirtypages, oldRootId, Permissions.READ_ONLY)).getNumTuples() > 0)) {
+			throw new DbException("bulk load needs an empty B+ tree");
+		}
+
+		int leafCapacity = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), keyField).getMaxTuples();
+		int childCapacity = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), keyField).getMaxEntries() + 1;
+
+		try(ExternalSorter sorter = new ExternalSorter(td,
+				new BTreeFileEncoder.TupleComparator(keyField), Math.max(1, sortPages) * leafCapacity)) {
+			tuples.open();
+			try {
+				while(tuples.hasNext()) {
+					sorter.add(tuples.next());
+				}
+			} finally {
+				tuples.close();
+			}
+			if(sorter.count() == 0) {
+				return new ArrayList<>(dirtypages.values());
+			}
+			if(sorter.count() > Integer.MAX_VALUE) {
+				throw new DbException("too many tuples to bulk load");
+			}
+
+			// 先算好每一层有几页、每页放多少，这样每一页写的时候兄弟和父节点的页号都已经知道
+			// levels.get(0)是每个叶子页的记录数，上面每一层是每个内部页的孩子数
+			List<int[]> levels = new ArrayList<>();
+			levels.add(pageSizes((int) sorter.count(), (int) (leafCapacity * fillFactor), leafCapacity));
+			while(levels.get(levels.size() - 1).length > 1) {
+				int children = levels.get(levels.size() - 1).length;
+				levels.add(pageSizes(children, childCapacity, childCapacity));
+			}
+			// 新页接在文件末尾，一层接一层，根是最后一页
+			int[] firstPageNo = new int[levels.size()];
+			firstPageNo[0] = numPages() + 1;
+			for(int level = 1; level < levels.size(); level++) {
+				firstPageNo[level] = firstPageNo[level - 1] + levels.get(level - 1).length;
+			}
+
+			Type[] types = new Type[td.numFields()];
+			for(int i = 0; i < types.length; i++) {
+				types[i] = td.getFieldType(i);
+			}
+
+			// 每一层每一页的最小键，上一层用它作为分隔键
+			Field[] minKeys = new Field[levels.get(0).length];
+			Iterator<Tuple> sorted = sorter.sorted();
+			int[] leafSizes = levels.get(0);
+			BTreePageId[] leafParents = parentIds(levels, firstPageNo, 0);
+			Field lastKey = null;
+			for(int i = 0; i < leafSizes.length; i++) {
+				List<Tuple> pageTuples = new ArrayList<>(leafSizes[i]);
+				for(int j = 0; j < leafSizes[i]; j++) {
+					pageTuples.add(sorted.next());
+				}
+				// 叶子页之间的分隔键用能分开两页的最短的key
+				minKeys[i] = i == 0 ? pageTuples.get(0).getField(keyField)
+						: separator(lastKey, pageTuples.get(0).getField(keyField));
+				lastKey = pageTuples.get(pageTuples.size() - 1).getField(keyField);
+				BTreePageId pid = new BTreePageId(tableid, firstPageNo[0] + i, BTreePageId.LEAF);
+				BTreeLeafPage page = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(pageTuples,
+						BufferPool.getPageSize(), types.length, types, keyField), keyField);
+				page.setLeftSiblingId(i > 0 ? new BTreePageId(tableid, pid.getPageNumber() - 1, BTreePageId.LEAF) : null);
+				page.setRightSiblingId(i < leafSizes.length - 1
+						? new BTreePageId(tableid, pid.getPageNumber() + 1, BTreePageId.LEAF) : null);
+				page.setParentId(leafParents[i]);
+				writePage(page);
+			}
+
+			for(int level = 1; level < levels.size(); level++) {
+				int[] sizes = levels.get(level);
+				int childCategory = (level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+				Field[] pageMinKeys = new Field[sizes.length];
+				BTreePageId[] parents = parentIds(levels, firstPageNo, level);
+				int child = 0;
+				for(int i = 0; i < sizes.length; i++) {
+					pageMinKeys[i] = minKeys[child];
+					List<BTreeEntry> entries = new ArrayList<>(sizes[i] - 1);
+					for(int j = 1; j < sizes[i]; j++) {
+						entries.add(new BTreeEntry(minKeys[child + j],
+								new BTreePageId(tableid, firstPageNo[level - 1] + child + j - 1, childCategory),
+								new BTreePageId(tableid, firstPageNo[level - 1] + child + j, childCategory)));
+					}
+					child += sizes[i];
+					BTreePageId pid = new BTreePageId(tableid, firstPageNo[level] + i, BTreePageId.INTERNAL);
+					BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(entries,
+							BufferPool.getPageSize(), types[keyField], childCategory), keyField);
+					page.setParentId(parents[i]);
+					writePage(page);
+				}
+				minKeys = pageMinKeys;
+			}
+			// 新页先落盘，再让根指针指过去
+			channel.force();
+
+			int top = levels.size() - 1;
+			rootPtr.setRootId(new BTreePageId(tableid, firstPageNo[top],
+					top == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL));
+		}
+		if(oldRootId != null) {
+			setEmptyPage(tid, dirtypages, oldRootId.getPageNumber());
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Divide n items into as few pages as possible that hold at least target items each,
+	 * without putting more than capacity items on a page, and spread the items evenly
+	 * over the pages.
+	 * 
+	 * @return the number of items on each page
+	 */
+	private static int[] pageSizes(int n, int target, int capacity) {
+		int pages = Math.max(Math.max(1, n / Math.max(1, target)), (n + capacity - 1) / capacity);
+		int[] sizes = new int[pages];
+		for(int i = 0; i < pages; i++) {
+			sizes[i] = n / pages + (i < n % pages ? 1 : 0);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Returns the ids of the parents of the pages of a level laid out by bulkLoad, or
+	 * the root pointer page if the level has only one page.
+	 */
+	private BTreePageId[] parentIds(List<int[]> levels, int[] firstPageNo, int level) {
+		BTreePageId[] parents = new BTreePageId[levels.get(level).length];
+		if(level == levels.size() - 1) {
+			parents[0] = BTreeRootPtrPage.getId(tableid);
+			return parents;
+		}
+		int[] parentSizes = levels.get(level + 1);
+		int child = 0;
+		for(int i = 0; i < parentSizes.length; i++) {
+			BTreePageId parentId = new BTreePageId(tableid, firstPageNo[level + 1] + i, BTreePageId.INTERNAL);
+			for(int j = 0; j < parentSizes[i]; j++) {
+				parents[child++] = parentId;
+			}
+		}
+		return parents;
+	}
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
 	 * Otherwise merge with one of the siblings. Update pointers as needed.
-	 * 
+	 * <p>
+	 * For internal pages keyed on a string field, which are stored in the compact format,
+	 * "half full" is measured in bytes rather than in entries: getMaxEntries() is the number
+	 * of entries with the longest possible key that fit on an empty page, and
+	 * getNumEmptySlots() the number of such entries that still fit. So a compact page is
+	 * less than half full when more than half of getMaxEntries() worst-case entries could
+	 * still be added to it, i.e. when somewhat less than half of its bytes are in use,
+	 * however many short keys it holds. Stealing stops early if the page runs out of
+	 * bytes, and merging is only chosen when the sibling is equally empty by this measure,
+	 * so the merged page always fits.
+	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param page - the page which is less than half full
@@ -691,8 +1038,10 @@ public class BTreeFile implements DbFile {
 		}
 
 		//4. 新建一个entry插入父节点
-		if(isRightSibling) entry.setKey(tupleIterator.next().getField(keyField));
-		else entry.setKey(next.getField(keyField));
+//		if(isRightSibling) entry.setKey(tupleIterator.next().getField(keyField));
+//		else entry.setKey(next.getField(keyField));
+		if(isRightSibling) entry.setKey(separator(next.getField(keyField), tupleIterator.next().getField(keyField)));
+		else entry.setKey(separator(tupleIterator.next().getField(keyField), next.getField(keyField)));
 
 		parent.updateEntry(entry);
 	}
@@ -789,8 +1138,8 @@ public class BTreeFile implements DbFile {
 		page.insertEntry(midEntry);
 		stealNum--;
 
-		//4. 再插入左节点中的entry
-		while(stealNum>0){
+		//4. 再插入左节点中的entry，字符串key的页按字节算满了就停下
+		while(stealNum>0 && page.getNumEmptySlots() > 0){
 			leftSibling.deleteKeyAndRightChild(leftLastEntry);
 			page.insertEntry(leftLastEntry);
 			stealNum--;
@@ -851,16 +1200,20 @@ public class BTreeFile implements DbFile {
 		page.insertEntry(midEntry);
 		stealNum--;
 
-		//4. 再插入右节点中的entry
-		while(stealNum>0){
-			rightSibling.deleteKeyAndRightChild(rightFirstEntry);
-			page.insertEntry(pageLastEntry);
+		//4. 再插入右节点中的entry，字符串key的页按字节算满了就停下
+		// 右节点的entry移到page的末尾，它的左孩子已经是page的最后一个孩子，要删的是key和左孩子
+		while(stealNum>0 && page.getNumEmptySlots() > 0){
+//			rightSibling.deleteKeyAndRightChild(rightFirstEntry);
+//			page.insertEntry(pageLastEntry);
+			rightSibling.deleteKeyAndLeftChild(rightFirstEntry);
+			page.insertEntry(rightFirstEntry);
 			stealNum--;
 			rightFirstEntry = rightIterator.next();
 		}
 
 		//5. 将右节点最小的entry插入到父节点
-		rightSibling.deleteKeyAndRightChild(rightFirstEntry);
+//		rightSibling.deleteKeyAndRightChild(rightFirstEntry);
+		rightSibling.deleteKeyAndLeftChild(rightFirstEntry);
 		parentEntry.setKey(rightFirstEntry.getKey());
 		parent.updateEntry(parentEntry);
 
@@ -1011,7 +1364,8 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+//		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1074,15 +1428,12 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(channel.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.append(emptyRootPtrData);
+				channel.append(emptyLeafData);
 			}
 		}
 
@@ -1138,11 +1489,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1173,10 +1521,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1306,6 +1651,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// read ahead along the right sibling pointers once the scan moves to the next leaf
+	final SequentialPrefetcher prefetcher =
+			new SequentialPrefetcher(page -> ((BTreeLeafPage) page).getRightSiblingId());
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1324,11 +1672,20 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		Set<PageId> heldBefore = new HashSet<>();
+		if(Database.getBufferPool().holdsLock(tid, rootPtrId)) {
+			heldBefore.add(rootPtrId);
+		}
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+				tid, rootPtrId, Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+//		curp = f.findLeafPage(tid, root, null);
+		// 内部节点只在往下走时加锁，扫描只锁叶子页
+		curp = f.crabToLeafPage(tid, new HashMap<>(), root, rootPtrId,
+				Permissions.READ_ONLY, Permissions.READ_ONLY, null, heldBefore);
 		it = curp.iterator();
+		prefetcher.reset();
 	}
 
 	/**
@@ -1350,6 +1707,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				prefetcher.advanced(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1391,6 +1749,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	// read ahead along the right sibling pointers once the search moves past its first leaf
+	final SequentialPrefetcher prefetcher =
+			new SequentialPrefetcher(page -> ((BTreeLeafPage) page).getRightSiblingId());
 
 	/**
 	 * Constructor for this iterator
@@ -1409,17 +1770,28 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		Set<PageId> heldBefore = new HashSet<>();
+		if(Database.getBufferPool().holdsLock(tid, rootPtrId)) {
+			heldBefore.add(rootPtrId);
+		}
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+				tid, rootPtrId, Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			// 内部节点只在往下走时加锁，扫描只锁叶子页
+			curp = f.crabToLeafPage(tid, new HashMap<>(), root, rootPtrId,
+					Permissions.READ_ONLY, Permissions.READ_ONLY, ipred.getField(), heldBefore);
+			// 叶子页里二分查找第一个key >= 谓词值的tuple，从那里开始扫描
+			it = curp.iterator(curp.lowerBound(ipred.getField()));
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.crabToLeafPage(tid, new HashMap<>(), root, rootPtrId,
+					Permissions.READ_ONLY, Permissions.READ_ONLY, null, heldBefore);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
+		prefetcher.reset();
 	}
 
 	/**
@@ -1459,6 +1831,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				prefetcher.advanced(curp);
 				it = curp.iterator();
 			}
 		}
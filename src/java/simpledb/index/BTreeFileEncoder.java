@@ -636,6 +636,23 @@ public class BTreeFileEncoder {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		if(keyType == Type.STRING_TYPE) {
+			// 字符串key的内部页是压缩格式，见BTreeInternalPage.writeCompactEntries
+			entries.sort(new EntryComparator());
+			List<Field> keys = new ArrayList<>();
+			List<Integer> children = new ArrayList<>();
+			children.add(entries.get(0).getLeftChild().getPageNumber());
+			for(BTreeEntry e : entries) {
+				keys.add(e.getKey());
+				children.add(e.getRightChild().getPageNumber());
+			}
+			dos.writeInt(0); // parent pointer
+			dos.writeByte((byte) childPageCategory);
+			int size = BTreeInternalPage.writeCompactEntries(dos, keys, children);
+			dos.write(new byte[npagebytes - BTreeInternalPage.INDEX_SIZE - 1 - size]);
+			return baos.toByteArray();
+		}
+
 		// write out the pointers and the header of the page,
 		// then sort the entries and write them out.
 		//
@@ -45,6 +45,8 @@ public class BTreeHeaderPage implements Page {
 	// 存储旧的数据，oldDataLock是用于并发synchronized的锁
 	byte[] oldData;
 	private final Byte oldDataLock= (byte) 0;
+	// 最后一条修改这一页的日志记录的LSN，只在内存里
+	private volatile long lsn = -1;
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -132,6 +134,14 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
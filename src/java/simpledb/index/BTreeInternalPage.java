@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -31,6 +32,21 @@ public class BTreeInternalPage extends BTreePage {
 	//孩子节点的类型（内部节点或叶节点）
 	private int childCategory; // either leaf or internal
 
+	// 按顺序排列的已用slot（包括slot 0），二分查找用；slot的使用情况改变时置为null，下次查找时重建
+	private volatile int[] usedSlots;
+
+	// 字符串key的内部页用变长、前缀压缩的格式存储，见writeCompactEntries
+	private final boolean compact;
+	// 压缩格式下序列化后占用的字节数；页的内容改变时置为-1，下次用到时重新计算
+	private volatile int usedBytes = -1;
+
+	// 压缩格式的固定部分：父节点指针、子节点类型、已用slot数、slot 0的子节点指针
+	private static final int COMPACT_HEADER_SIZE = INDEX_SIZE + 1 + 2 + INDEX_SIZE;
+	// 压缩格式每个entry除了key的后缀以外的字节：右子节点指针、和前一个key共同前缀的长度、后缀的长度
+	private static final int COMPACT_ENTRY_OVERHEAD = INDEX_SIZE + 2;
+	// 压缩格式下一个entry最多占的字节
+	private static final int MAX_COMPACT_ENTRY_SIZE = COMPACT_ENTRY_OVERHEAD + Type.STRING_LEN;
+
 	/**
 	 * 其实内部节点可以看成保存着一个个BTreeEntry，内部节点对key的查找、插入、删除、迭代，都是以entry为单位的。
 	 * 通过BTreeEntry可以获取key、LeftChild、RightChild这三种信息，然后存入相应数组中。
@@ -81,10 +97,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
 	 * @param key - the field which the index is keyed on
+	 * 
+	 * Pages keyed on a string field use a different, compact format instead: see
+	 * {@link #writeCompactEntries(DataOutputStream, List, List)}.
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.compact = td.getFieldType(keyField) == Type.STRING_TYPE;
+		// 压缩格式的slot数按最短的entry（空后缀）算，实际能放多少由剩下的字节决定
+		this.numSlots = compact ? (BufferPool.getPageSize() - COMPACT_HEADER_SIZE) / COMPACT_ENTRY_OVERHEAD + 1
+				: getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -100,10 +122,17 @@ public class BTreeInternalPage extends BTreePage {
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(compact) {
+			readCompactEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -115,7 +144,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -132,6 +160,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
+		if(compact) {
+			// 变长的entry按最长的key算，这是一定能放下的entry数；和getNumEmptySlots一样留出一个entry的余量
+			return (BufferPool.getPageSize() - COMPACT_HEADER_SIZE - MAX_COMPACT_ENTRY_SIZE) / MAX_COMPACT_ENTRY_SIZE;
+		}
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -146,7 +178,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -178,6 +210,112 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Write the entries of a page keyed on a string field in the compact format. After the
+	 * parent pointer and the child page category, a compact page holds the number of used
+	 * slots (entries + 1, or 0 for an empty page) as a short, the leftmost child pointer, and
+	 * then for each entry in key order its right child pointer, the length of the prefix its
+	 * key shares with the previous key and the length of the rest of the key as one byte
+	 * each, and the rest of the key. Keys take only as many bytes as they differ from their
+	 * neighbours in, so many more of them fit on a page than in the fixed width format.
+	 * 
+	 * @param dos - the stream to write to
+	 * @param keys - the keys in sorted order
+	 * @param children - the child page numbers; one more than there are keys, or none
+	 * @return the number of bytes written
+	 */
+	static int writeCompactEntries(DataOutputStream dos, List<Field> keys, List<Integer> children)
+			throws IOException {
+		int size = 2 + INDEX_SIZE;
+		dos.writeShort(children.size());
+		dos.writeInt(children.isEmpty() ? 0 : children.get(0));
+		byte[] prev = new byte[0];
+		for(int i = 0; i < keys.size(); i++) {
+			byte[] bs = keyBytes(keys.get(i));
+			int prefix = commonPrefix(prev, bs);
+			dos.writeInt(children.get(i + 1));
+			dos.writeByte(prefix);
+			dos.writeByte(bs.length - prefix);
+			dos.write(bs, prefix, bs.length - prefix);
+			size += COMPACT_ENTRY_OVERHEAD + bs.length - prefix;
+			prev = bs;
+		}
+		return size;
+	}
+
+	/**
+	 * Read the entries of a page in the compact format, and mark their slots used.
+	 */
+	private void readCompactEntries(DataInputStream dis) throws IOException {
+		int used = dis.readUnsignedShort();
+		int leftmost = dis.readInt();
+		if(used == 0)
+			return;
+		children[0] = leftmost;
+		markSlotUsed(0, true);
+		byte[] prev = new byte[0];
+		for(int i = 1; i < used; i++) {
+			children[i] = dis.readInt();
+			int prefix = dis.readUnsignedByte();
+			byte[] bs = Arrays.copyOf(prev, prefix + dis.readUnsignedByte());
+			dis.readFully(bs, prefix, bs.length - prefix);
+			// 和Type.STRING_TYPE.parse一样构造key
+			keys[i] = new StringField(new String(bs), Type.STRING_LEN);
+			markSlotUsed(i, true);
+			prev = bs;
+		}
+	}
+
+	/**
+	 * Returns the bytes of a string key as StringField.serialize writes them.
+	 */
+	private static byte[] keyBytes(Field key) {
+		String s = ((StringField) key).getValue();
+		byte[] bs = new byte[s.length()];
+		for(int i = 0; i < bs.length; i++)
+			bs[i] = (byte) s.charAt(i);
+		return bs;
+	}
+
+	private static int commonPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while(i < n && a[i] == b[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * Returns the number of bytes this page takes in the compact format.
+	 */
+	private int compactSize() {
+		int size = usedBytes;
+		if(size < 0) {
+			size = COMPACT_HEADER_SIZE;
+			byte[] prev = new byte[0];
+			for(int slot : usedSlots()) {
+				if(slot == 0)
+					continue;
+				byte[] bs = keyBytes(keys[slot]);
+				size += COMPACT_ENTRY_OVERHEAD + bs.length - commonPrefix(prev, bs);
+				prev = bs;
+			}
+			usedBytes = size;
+		}
+		return size;
+	}
+
+	/**
+	 * Check that a page in the compact format still fits in a page after a change.
+	 * The callers make sure there is room before they add or change entries, so this
+	 * only guards against writing out a corrupt page.
+	 */
+	private void checkCompactSize() throws DbException {
+		usedBytes = -1;
+		if(compact && compactSize() > BufferPool.getPageSize())
+			throw new DbException("entries of internal page " + pid.getPageNumber() + " no longer fit in a page");
+	}
+
 	/**
 	 * Read keys from the source file.
 	 */
@@ -269,6 +407,24 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if(compact) {
+			List<Field> usedKeys = new ArrayList<>();
+			List<Integer> usedChildren = new ArrayList<>();
+			for(int slot : usedSlots()) {
+				if(slot > 0)
+					usedKeys.add(keys[slot]);
+				usedChildren.add(children[slot]);
+			}
+			try {
+				int size = writeCompactEntries(dos, usedKeys, usedChildren);
+				dos.write(new byte[len - INDEX_SIZE - 1 - size]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -448,6 +604,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		checkCompactSize();
 	}
 
 	/**
@@ -484,13 +641,15 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+//		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
+			checkCompactSize();
 			return;
 		}
 
@@ -570,6 +729,7 @@ public class BTreeInternalPage extends BTreePage {
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
+		checkCompactSize();
 	}
 
 	/**
@@ -589,11 +749,18 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+//		return numSlots - getNumEmptySlots() - 1;
+		// 压缩格式下空slot不一定放得下entry，所以直接数已用的slot
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For a page in the compact format,
+	 * this is the number of entries that are sure to fit whatever their keys.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
@@ -602,6 +769,12 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if(compact) {
+			// 按最长的key算剩下的字节还能放几个entry，另外留出一个entry的余量，
+			// 删除时updateEntry把父节点的key换成更长的key也放得下
+			int room = (BufferPool.getPageSize() - compactSize() - MAX_COMPACT_ENTRY_SIZE) / MAX_COMPACT_ENTRY_SIZE;
+			cnt = Math.min(cnt, Math.max(0, room));
+		}
 		return cnt;
 	}
 
@@ -626,6 +799,60 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+		usedBytes = -1;
+	}
+
+	/**
+	 * Returns the number of slots on this page, slot 0 included. For pages in the
+	 * compact format this is more than getMaxEntries() + 1.
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Returns the used slots of this page in order, slot 0 included.
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if(slots == null) {
+			int n = 0;
+			int[] all = new int[numSlots];
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					all[n++] = i;
+			usedSlots = slots = Arrays.copyOf(all, n);
+		}
+		return slots;
+	}
+
+	/**
+	 * Returns the id of the child page a search for key f continues in: the
+	 * left child of the first entry whose key is greater than or equal to f,
+	 * or the right child of the last entry if there is none. A null f gives
+	 * the leftmost child. The keys are binary searched in place, without
+	 * creating a BTreeEntry per slot.
+	 *
+	 * @param f - the key to search for, or null
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		int[] slots = usedSlots();
+		// slot 0只放最左边的子节点，没有key
+		if(slots.length < 2 || slots[0] != 0)
+			return null;
+		// 在slots[1..]里找第一个key >= f的位置，子节点是它前一个slot的指针
+		int lo = 1;
+		int hi = f == null ? 1 : slots.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[slots[mid]].compare(Op.GREATER_THAN_OR_EQ, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return new BTreePageId(pid.getTableId(), children[slots[lo - 1]], childCategory);
 	}
 
 	/**
@@ -768,7 +995,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -27,6 +27,9 @@ public class BTreeLeafPage extends BTreePage {
 	// 页节点的双向链表结构
 	private int leftSibling; // leaf node or 0 左兄弟的pageNo，用于获取左兄弟的BTreePageId，为0则没有左兄弟
 	private int rightSibling; // leaf node or 0 右兄弟的pageNo，用于获取右兄弟的BTreePageId，为0则没有右兄弟
+
+	// 按顺序排列的已用slot，二分查找用；slot的使用情况改变时置为null，下次查找时重建
+	private volatile int[] usedSlots;
 	/**
 	 * 叶节点和内部节点不一样的地方在于，
 	 * 其保存的是一个个真正的数据，也就是保存着一个个Tuple。还有就是其的链表结构用于顺序查找。
@@ -332,14 +335,18 @@ public class BTreeLeafPage extends BTreePage {
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
 		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+//		for (int i=0; i<numSlots; i++) {
+//			if(isSlotUsed(i)) {
+//				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+//					lessOrEqKey = i;
+//				else
+//					break;
+//			}
+//		}
+		int[] slots = usedSlots();
+		int greater = search(slots, Predicate.Op.GREATER_THAN, key);
+		if(greater > 0)
+			lessOrEqKey = slots[greater - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -480,6 +487,55 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedSlots = null;
+	}
+
+	/**
+	 * Returns the used slots of this page in order.
+	 */
+	private int[] usedSlots() {
+		int[] slots = usedSlots;
+		if(slots == null) {
+			int n = 0;
+			int[] all = new int[numSlots];
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					all[n++] = i;
+			usedSlots = slots = Arrays.copyOf(all, n);
+		}
+		return slots;
+	}
+
+	/**
+	 * Binary search the tuples in the given used slots for the first one
+	 * whose key field satisfies "key op f". The op must be GREATER_THAN or
+	 * GREATER_THAN_OR_EQ, which holds for a suffix of the sorted tuples.
+	 *
+	 * @return the index into slots of that tuple, or slots.length if none
+	 */
+	private int search(int[] slots, Predicate.Op op, Field f) {
+		int lo = 0;
+		int hi = slots.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(tuples[slots[mid]].getField(keyField).compare(op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the slot of the first tuple whose key field is greater than or
+	 * equal to f, found by binary search, or getMaxTuples() if there is none.
+	 *
+	 * @see #iterator(int)
+	 */
+	public int lowerBound(Field f) {
+		int[] slots = usedSlots();
+		int i = search(slots, Predicate.Op.GREATER_THAN_OR_EQ, f);
+		return i < slots.length ? slots[i] : numSlots;
 	}
 
 	/**
@@ -490,6 +546,14 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page from the given slot on
+	 * @see #lowerBound(Field)
+	 */
+	public Iterator<Tuple> iterator(int slot) {
+		return new BTreeLeafPageIterator(this, slot);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -536,6 +600,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int curTuple) {
+		this.p = p;
+		this.curTuple = curTuple;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
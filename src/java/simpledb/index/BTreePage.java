@@ -37,6 +37,8 @@ public abstract class BTreePage implements Page {
 	// 存储旧的数据，oldDataLock是用于并发synchronized的锁
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
+	// 最后一条修改这一页的日志记录的LSN，只在内存里
+	private volatile long lsn = -1;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -152,5 +154,11 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
-}
+	public long getLSN() {
+		return lsn;
+	}
 
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+}
@@ -29,6 +29,8 @@ public class BTreeRootPtrPage implements Page {
 	private int header; // 保存当前header页的pageNo
 
 	private byte[] oldData; // 用于回滚
+	// 最后一条修改这一页的日志记录的LSN，只在内存里
+	private volatile long lsn = -1;
 
 	/**
 	 * Constructor.
@@ -57,6 +59,14 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -0,0 +1,185 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * ExternalSorter sorts a stream of tuples that may not fit in memory. Tuples are
+ * collected into runs of at most runSize tuples; each full run is sorted and written
+ * to a temporary file, and the runs are merged when the sorted tuples are read back.
+ * If all the tuples fit in one run nothing is written to disk.
+ */
+class ExternalSorter implements Closeable {
+
+	private final TupleDesc td;
+	private final Comparator<Tuple> comparator;
+	private final int runSize;
+
+	// 还在内存里的那一段
+	private List<Tuple> run = new ArrayList<>();
+	// 已经排好序写到磁盘上的段
+	private final List<File> runFiles = new ArrayList<>();
+	private final List<DataInputStream> readers = new ArrayList<>();
+	private long count;
+
+	/**
+	 * Construct an ExternalSorter
+	 *
+	 * @param td - the TupleDesc of the tuples to sort
+	 * @param comparator - the order to sort the tuples in
+	 * @param runSize - the number of tuples to sort in memory at a time
+	 */
+	ExternalSorter(TupleDesc td, Comparator<Tuple> comparator, int runSize) {
+		if(runSize <= 0) {
+			throw new IllegalArgumentException("run size must be positive");
+		}
+		this.td = td;
+		this.comparator = comparator;
+		this.runSize = runSize;
+	}
+
+	/**
+	 * Add a tuple to sort, writing out a run if it is full.
+	 */
+	void add(Tuple t) throws IOException {
+		run.add(t);
+		count++;
+		if(run.size() >= runSize) {
+			spill();
+		}
+	}
+
+	/**
+	 * Returns the number of tuples added so far.
+	 */
+	long count() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of runs written to disk so far.
+	 */
+	int numRuns() {
+		return runFiles.size();
+	}
+
+	/**
+	 * Sort the tuples in memory and write them to a new run file.
+	 */
+	private void spill() throws IOException {
+		run.sort(comparator);
+		File f = File.createTempFile("sortrun", ".dat");
+		f.deleteOnExit();
+		runFiles.add(f);
+		try(DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f)))) {
+			for(Tuple t : run) {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(dos);
+				}
+			}
+		}
+		run = new ArrayList<>();
+	}
+
+	/**
+	 * Returns the tuples added so far in sorted order. No more tuples may be added
+	 * afterwards. The runs on disk are read back as the iterator advances; an
+	 * IOException while reading them is thrown as a RuntimeException.
+	 */
+	Iterator<Tuple> sorted() throws IOException {
+		run.sort(comparator);
+		if(runFiles.isEmpty()) {
+			return run.iterator();
+		}
+
+		// 每一段的下一条记录放进堆里，多路归并
+		List<Iterator<Tuple>> runs = new ArrayList<>();
+		for(File f : runFiles) {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			readers.add(dis);
+			runs.add(new RunIterator(dis, f.length() / td.getSize()));
+		}
+		runs.add(run.iterator());
+
+		PriorityQueue<Map.Entry<Tuple, Integer>> heads = new PriorityQueue<>((a, b) -> {
+			int cmp = comparator.compare(a.getKey(), b.getKey());
+			// 相等的记录按段的先后输出，排序是稳定的
+			return cmp != 0 ? cmp : Integer.compare(a.getValue(), b.getValue());
+		});
+		for(int i = 0; i < runs.size(); i++) {
+			if(runs.get(i).hasNext()) {
+				heads.add(new AbstractMap.SimpleEntry<>(runs.get(i).next(), i));
+			}
+		}
+		return new Iterator<Tuple>() {
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+
+			public Tuple next() {
+				Map.Entry<Tuple, Integer> head = heads.poll();
+				if(head == null) {
+					throw new NoSuchElementException();
+				}
+				Iterator<Tuple> it = runs.get(head.getValue());
+				if(it.hasNext()) {
+					heads.add(new AbstractMap.SimpleEntry<>(it.next(), head.getValue()));
+				}
+				return head.getKey();
+			}
+		};
+	}
+
+	/**
+	 * Reads back the tuples of one run file.
+	 */
+	private class RunIterator implements Iterator<Tuple> {
+		private final DataInputStream dis;
+		private long remaining;
+
+		RunIterator(DataInputStream dis, long numTuples) {
+			this.dis = dis;
+			this.remaining = numTuples;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		public Tuple next() {
+			if(remaining <= 0) {
+				throw new NoSuchElementException();
+			}
+			remaining--;
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(dis));
+				}
+			} catch (ParseException e) {
+				throw new RuntimeException(e);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * Close and delete the run files.
+	 */
+	public void close() throws IOException {
+		for(DataInputStream dis : readers) {
+			dis.close();
+		}
+		readers.clear();
+		for(File f : runFiles) {
+			f.delete();
+		}
+		runFiles.clear();
+		run = new ArrayList<>();
+	}
+}
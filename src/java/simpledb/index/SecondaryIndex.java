@@ -0,0 +1,186 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a non-clustered B+ tree index on one field of a HeapFile table.
+ * The index is a BTreeFile keyed on its first field whose tuples are
+ * (key, page number, tuple number): the indexed field of a table tuple followed by
+ * the RecordId of the tuple in the table. The BufferPool keeps the index up to date
+ * as tuples are inserted into and deleted from the table, on behalf of the same
+ * transaction, so the index pages are locked, logged and rolled back like any
+ * other page.
+ * <p>
+ * The BTreeFile orders index tuples by key only, so tuples with equal keys are in no
+ * particular order and a search can only find the first of them. Deleting a table
+ * tuple therefore scans the index tuples with its key until it finds the one with its
+ * RecordId: the cost grows with the number of duplicates of the key, and the scan
+ * read-locks every leaf page holding them, up to the one the entry is on, until the
+ * transaction ends. Indexes on fields with few distinct values make deletes slow and
+ * make deleting transactions conflict with each other.
+ */
+public class SecondaryIndex {
+
+	private final String name;
+	private final int tableId;
+	private final int keyField;
+	private final BTreeFile file;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name - the name of the index
+	 * @param tableId - the id of the HeapFile table the index is on
+	 * @param keyField - the index of the indexed field in the table
+	 * @param file - the BTreeFile storing the index, with the TupleDesc returned by
+	 *               {@link #indexTupleDesc(TupleDesc, int)}
+	 */
+	public SecondaryIndex(String name, int tableId, int keyField, BTreeFile file) {
+		if(file.keyField() != 0 || file.getTupleDesc().numFields() != 3) {
+			throw new IllegalArgumentException("index file must be keyed on the first of (key, page number, tuple number)");
+		}
+		this.name = name;
+		this.tableId = tableId;
+		this.keyField = keyField;
+		this.file = file;
+	}
+
+	/**
+	 * Returns the TupleDesc of an index on field keyField of a table with the given
+	 * TupleDesc: the indexed field followed by the page and tuple number of the
+	 * RecordId.
+	 */
+	public static TupleDesc indexTupleDesc(TupleDesc tableTd, int keyField) {
+		return new TupleDesc(new Type[]{tableTd.getFieldType(keyField), Type.INT_TYPE, Type.INT_TYPE},
+				new String[]{tableTd.getFieldName(keyField), "pageNo", "tupleNo"});
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the id of the table the index is on.
+	 */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * Returns the index of the indexed field in the table.
+	 */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the BTreeFile storing the index.
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the index tuple of a tuple stored in the table.
+	 */
+	private Tuple indexTuple(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple entry = new Tuple(file.getTupleDesc());
+		entry.setField(0, t.getField(keyField));
+		entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(2, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * Returns the RecordId in the table that an index tuple points to.
+	 */
+	public RecordId recordId(Tuple entry) {
+		return new RecordId(new HeapPageId(tableId, ((IntField) entry.getField(1)).getValue()),
+				((IntField) entry.getField(2)).getValue());
+	}
+
+	/**
+	 * Returns the index tuples matching ipred in key order, or all of them if
+	 * ipred is null.
+	 */
+	public DbFileIterator entries(TransactionId tid, IndexPredicate ipred) {
+		return ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+	}
+
+	/**
+	 * Add the index tuple of t, which has just been inserted into the table, to the
+	 * index on behalf of transaction tid.
+	 *
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, indexTuple(t));
+	}
+
+	/**
+	 * Remove the index tuple of t, which is about to be deleted from the table, from
+	 * the index on behalf of transaction tid. This scans the index tuples with the key
+	 * of t until it finds the one with its RecordId; see the class comment.
+	 *
+	 * @return a list of all pages that were dirtied by this operation
+	 * @throws DbException if t is not in the index
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple target = indexTuple(t);
+		// 相同的键可能有很多条，找到RecordId也一样的那一条
+		Tuple found = null;
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, target.getField(0)));
+		it.open();
+		while(found == null && it.hasNext()) {
+			Tuple entry = it.next();
+			if(entry.getField(1).equals(target.getField(1)) && entry.getField(2).equals(target.getField(2))) {
+				found = entry;
+			}
+		}
+		it.close();
+		if(found == null) {
+			throw new DbException("tuple " + t.getRecordId() + " is not in index " + name);
+		}
+		return file.deleteTuple(tid, found);
+	}
+
+	/**
+	 * Returns the index tuples of all the tuples currently in the table, for loading
+	 * a new index with {@link BTreeFile#bulkLoad}.
+	 */
+	public DbFileIterator tableEntries(TransactionId tid) {
+		DbFileIterator tuples = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+		return new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				tuples.open();
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				return tuples.hasNext() ? indexTuple(tuples.next()) : null;
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				super.close();
+				tuples.rewind();
+			}
+
+			public void close() {
+				super.close();
+				tuples.close();
+			}
+		};
+	}
+}
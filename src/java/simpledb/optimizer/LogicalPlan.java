@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -274,6 +275,56 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Parse the constant of a filter as a field of the given type. */
+    private static Field constantField(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c));
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /** Choose the access method of a base table. If a filter on the table compares
+     *  a field that has a secondary index on it, and fetching the tuples matching the
+     *  most selective such filter through the index is estimated to be cheaper than
+     *  reading the whole table, the table is read with an {@link IndexScan};
+     *  otherwise with a {@link SeqScan}. The filters are still applied on top of
+     *  the scan either way. Snapshot transactions always get a SeqScan, since
+     *  secondary indexes only hold the current state of their table.
+     *  @param t The transaction the scan will run as a part of
+     *  @param table the table to scan
+     *  @param s the statistics of the table, or null if there are none
+     */
+    private OpIterator chooseScan(TransactionId t, LogicalScanNode table, TableStats s) {
+        SeqScan ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(table.t);
+        if (s == null || indexes.isEmpty() || Database.getBufferPool().isSnapshot(t))
+            return ss;
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        SecondaryIndex bestIndex = null;
+        IndexPredicate bestPred = null;
+        double bestSel = 1.0;
+        for (LogicalFilterNode lf : filters) {
+            // 不等于和LIKE在B+树上查不出一个范围
+            if (!lf.tableAlias.equals(table.alias) || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            for (SecondaryIndex index : indexes) {
+                if (!td.getFieldName(index.getKeyField()).equals(lf.fieldPureName))
+                    continue;
+                Field f = constantField(td.getFieldType(index.getKeyField()), lf.c);
+                double sel = s.estimateSelectivity(index.getKeyField(), lf.p, f);
+                if (bestIndex == null || sel < bestSel) {
+                    bestIndex = index;
+                    bestPred = new IndexPredicate(lf.p, f);
+                    bestSel = sel;
+                }
+            }
+        }
+        if (bestIndex != null && s.estimateIndexScanCost(bestSel) < s.estimateScanCost())
+            return new IndexScan(t, bestIndex, bestPred, table.alias);
+        return ss;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -295,9 +346,11 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+//            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+//                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss = chooseScan(t, table, baseTableStats.get(Database.getCatalog().getTableName(table.t)));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -324,10 +377,11 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+//            if (ftyp == Type.INT_TYPE)
+//                f = new IntField(new Integer(lf.c));
+//            else
+//                f = new StringField(lf.c, Type.STRING_LEN);
+            f = constantField(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -84,6 +84,12 @@ public class OperatorCardinality {
                         ((SeqScan) child).getTableName())
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
+            } else if (child instanceof IndexScan) {
+                // IndexScan上面还保留着选它的那个Filter，按整表的基数估算，和SeqScan一样
+                f.setEstimatedCardinality((int) (tableStats.get(
+                        ((IndexScan) child).getTableName())
+                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                return false;
             }
         }
         f.setEstimatedCardinality(1);
@@ -67,15 +67,19 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+//        if (queryPlan instanceof SeqScan) {
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan) {
+//            SeqScan s = (SeqScan) queryPlan;
+            boolean isIndexScan = queryPlan instanceof IndexScan;
+            String tableName = isIndexScan ? ((IndexScan) queryPlan).getTableName() : ((SeqScan) queryPlan).getTableName();
+            String alias = isIndexScan ? ((IndexScan) queryPlan).getAlias() : ((SeqScan) queryPlan).getAlias();
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
+            if (isIndexScan)
+                alias += " using " + ((IndexScan) queryPlan).getIndex().getName();
             thisNode.text = String
                     .format("%1$s(%2$s)", SCAN, tableName + alias);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
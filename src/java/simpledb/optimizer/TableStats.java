@@ -181,6 +181,20 @@ public class TableStats {
         return dbFile.numPages() * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of fetching the tuples that satisfy a predicate with
+     * selectivity selectivityFactor through a secondary index. The index orders
+     * the tuples by key, not by where they are in the file, so each matching
+     * tuple is assumed to cost a page read of its own.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate on the indexed field
+     * @return The estimated cost of the index scan
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        return estimateTableCardinality(selectivityFactor) * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -0,0 +1,104 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * ARC (Megiddo and Modha). Resident pages are split into T1, pages seen once
+ * recently, and T2, pages seen at least twice. B1 and B2 remember the ids of
+ * pages recently evicted from T1 and T2. A miss on a B1 page means T1 was too
+ * small, a miss on a B2 page that T2 was too small, and the target size p of
+ * T1 is adapted accordingly; victims are taken from T1 while it is larger than
+ * p and from T2 otherwise.
+ */
+public class ARCEvictionPolicy implements EvictionPolicy {
+
+    private final int capacity;
+    // T1的目标大小
+    private int p;
+    // LinkedHashSet按插入顺序迭代：第一个元素是LRU端
+    private final LinkedHashSet<PageId> t1 = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> t2 = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> b1 = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> b2 = new LinkedHashSet<>();
+    private final EvictionStats stats = new EvictionStats();
+
+    public ARCEvictionPolicy(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized void pageHit(PageId pid) {
+        if (t1.remove(pid) || t2.remove(pid)) {
+            t2.add(pid);
+        }
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if (b1.remove(pid)) {
+            p = Math.min(capacity, p + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+            t2.add(pid);
+        } else if (b2.remove(pid)) {
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+            t2.add(pid);
+        } else {
+            t1.add(pid);
+        }
+        // 幽灵列表最多记住capacity个页：|T1|+|B1| <= c，|T1|+|T2|+|B1|+|B2| <= 2c
+        while (t1.size() + b1.size() > capacity && !b1.isEmpty()) {
+            removeFirst(b1);
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity && !b2.isEmpty()) {
+            removeFirst(b2);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (t1.remove(pid)) {
+            b1.add(pid);
+        } else if (t2.remove(pid)) {
+            b2.add(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        boolean fromT1 = !t1.isEmpty() && (t1.size() > p || t2.isEmpty());
+        int[] scanned = new int[1];
+        try {
+            // 首选列表里全是脏页时再去另一个列表找
+            PageId victim = scan(fromT1 ? t1 : t2, evictable, scanned);
+            if (victim == null) {
+                victim = scan(fromT1 ? t2 : t1, evictable, scanned);
+            }
+            return victim;
+        } finally {
+            stats.recordScan(scanned[0]);
+        }
+    }
+
+    private PageId scan(LinkedHashSet<PageId> list, Predicate<PageId> evictable, int[] scanned) {
+        for (PageId pid : list) {
+            scanned[0]++;
+            if (evictable.test(pid)) {
+                return pid;
+            }
+            stats.recordDirtySkip();
+        }
+        return null;
+    }
+
+    private static void removeFirst(LinkedHashSet<PageId> set) {
+        Iterator<PageId> it = set.iterator();
+        it.next();
+        it.remove();
+    }
+
+    /** Return the current target size of T1. */
+    synchronized int getTarget() {
+        return p;
+    }
+
+    public EvictionStats getStats() {
+        return stats;
+    }
+}
@@ -4,17 +4,31 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.transaction.DeadlockVictimPolicy;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -39,24 +53,255 @@ public class BufferPool {
     //默认buffer中保存的页数
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default number of independent partitions the pool is split into. */
+    public static final int DEFAULT_PARTITIONS = 16;
+
+    /** A partition is only worth having if it holds at least this many pages. */
+    private static final int MIN_PAGES_PER_PARTITION = 16;
+
+    /** Number of background threads reading pages ahead of sequential scans. */
+    private static final int PREFETCH_THREADS = 2;
+
+    /** Maximum number of read-ahead requests waiting for a prefetch thread. */
+    private static final int PREFETCH_QUEUE = 64;
+
+    /** Above this fraction of the pool in the dirty page table, the page cleaner writes the oldest pages back. */
+    private static final double CLEANER_DIRTY_RATIO = 0.5;
+
+    /**
+     * One independently locked share of the pool: the cached pages and the
+     * EvictionPolicy that decides which of them to replace. The partition
+     * monitor guards admission, removal and victim selection; the hit path
+     * only reads the ConcurrentHashMap and notifies the policy.
+     */
+    private static class Partition {
+        final Map<PageId, Page> pages = new ConcurrentHashMap<>();
+        final EvictionPolicy policy;
+        final int capacity;
+
+        Partition(EvictionPolicy policy, int capacity) {
+            this.policy = policy;
+            this.capacity = capacity;
+        }
+
+        /** Put a page that is not cached yet; the caller holds the partition lock. */
+        void admit(Page page) {
+            pages.put(page.getId(), page);
+            policy.pageAdmitted(page.getId());
+        }
+
+        /** Remove a page; the caller holds the partition lock. */
+        Page remove(PageId pid) {
+            Page page = pages.remove(pid);
+            policy.pageRemoved(pid);
+            return page;
+        }
+    }
+
     private int numPages;
 //    private ConcurrentHashMap<PageId, Page> buffer;
-    private LRUCache<PageId, Page> buffer;
+//    private LRUCache<PageId, Page> buffer;
+    // 按PageId的hash把缓存切分成多个分区，每个分区有自己的置换策略和锁，命中路径只会锁住一个分区
+    private final Partition[] partitions;
+    private final ReplacementPolicy policy;
+    // 没有干净页可以淘汰时是否允许把未提交事务的脏页（先写日志）刷盘后淘汰
+    private volatile boolean stealEnabled = true;
     LockManager lockManager;
 
+    // 每个事务可能弄脏的页：以READ_WRITE权限取过的页和insertTuple/deleteTuple返回的页。
+    // 提交和回滚只处理这些页，代价和事务的大小成正比，和缓冲池的大小无关
+    private final Map<TransactionId, Set<PageId>> writeSets = new ConcurrentHashMap<>();
+    // 所有运行中的事务可能弄脏的页 -> 最后一个写它的事务，flushAllPages（检查点）只处理这些页。
+    // 写锁是排他的，同一时刻只有一个事务能弄脏某一页，所以记录最后一个写者就够了
+    private final Map<PageId, TransactionId> dirtyPages = new ConcurrentHashMap<>();
+    // 脏页表：写过日志但还没写盘的页 -> recLSN（从上次写盘以来第一条修改它的日志记录）。
+    // 提交时页不写盘（NO-FORCE），已提交的修改只在这里的页上，淘汰前要先写回磁盘
+    private final Map<PageId, Long> recLsns = new ConcurrentHashMap<>();
+
+    // 顺序扫描预读的页数，0表示不预读
+    private volatile int prefetchWindow = 0;
+    private volatile ExecutorService prefetcher;
+    // 每次discardPage加一；预读期间有页被丢弃（比如B+树清空了一页）时，读到的可能是旧内容，不放入缓存
+    private final AtomicLong discards = new AtomicLong();
+
+    // 后台写脏页的线程，setPageCleanerInterval打开
+    private ScheduledExecutorService cleaner; // protected by this
+    private ScheduledFuture<?> cleanerTask; // protected by this
+
+    // 快照读用到的堆页旧版本
+    private final VersionStore versions = new VersionStore();
+    private volatile boolean multiVersionEnabled = false;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * pages according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy of every partition.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, DEFAULT_PARTITIONS, policy);
+    }
+
+    /**
+     * Creates an LRU BufferPool that caches up to numPages pages, split into
+     * at most numPartitions partitions.
+     *
+     * @see #BufferPool(int, int, ReplacementPolicy)
+     */
+    public BufferPool(int numPages, int numPartitions) {
+        this(numPages, numPartitions, ReplacementPolicy.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into at
+     * most numPartitions independently locked partitions. Pages are assigned
+     * to a partition by the hash of their PageId, and each partition runs its
+     * own replacement policy over its share of the pool. Small pools get fewer
+     * partitions so that every partition keeps a useful number of pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions maximum number of partitions to split the pool into.
+     * @param policy the page replacement policy of every partition.
+     */
+    public BufferPool(int numPages, int numPartitions, ReplacementPolicy policy) {
         // some code goes here
         this.numPages = numPages;
 //        this.buffer = new ConcurrentHashMap<>();
-        this.buffer = new LRUCache<>(numPages);
+//        this.buffer = new LRUCache<>(numPages);
+        int n = Math.max(1, Math.min(numPartitions, numPages / MIN_PAGES_PER_PARTITION));
+        this.policy = policy;
+        this.partitions = new Partition[n];
+        for(int i = 0; i < n; i++) {
+            // 余数部分均摊到前面的分区，保证所有分区容量之和正好是numPages
+            int capacity = numPages / n + (i < numPages % n ? 1 : 0);
+            partitions[i] = new Partition(policy.newPolicy(capacity), capacity);
+        }
         this.lockManager = new LockManager();
     }
 
+    /** Return the replacement policy this pool was created with. */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
+    }
+
+    /**
+     * Return the eviction counters of this pool, summed over the policies of
+     * all partitions.
+     */
+    public EvictionStats getEvictionStats() {
+        EvictionStats total = new EvictionStats();
+        for(Partition partition : partitions) {
+            total.add(partition.policy.getStats());
+        }
+        return total;
+    }
+
+    /** Return the number of getPage calls served from the pool. */
+    public long getHitCount() {
+        return getEvictionStats().getHits();
+    }
+
+    /** Return the number of getPage calls that had to read the page from disk. */
+    public long getMissCount() {
+        return getEvictionStats().getMisses();
+    }
+
+    /**
+     * Choose what happens when every page of a partition is dirty. With steal
+     * enabled (the default) the pool logs and writes out a page of a running
+     * transaction and evicts it, relying on the log to undo it on abort. With
+     * steal disabled the pool runs strictly NO STEAL and getPage throws a
+     * DbException instead.
+     */
+    public void setStealEnabled(boolean stealEnabled) {
+        this.stealEnabled = stealEnabled;
+    }
+
+    /**
+     * Choose which transaction is aborted when lock requests deadlock.
+     *
+     * @see LockManager#setVictimPolicy(DeadlockVictimPolicy)
+     */
+    public void setDeadlockVictimPolicy(DeadlockVictimPolicy policy) {
+        lockManager.setVictimPolicy(policy);
+    }
+
+    /**
+     * Set how many page locks a transaction may hold in one table before its
+     * locks are escalated to a single table lock.
+     *
+     * @see LockManager#setEscalationThreshold(int)
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    /**
+     * Turn multi-version reads on or off (off by default). While on, the
+     * pool keeps the last committed version of every heap page a running
+     * transaction writes, so that snapshot transactions can read without
+     * locks. Turn it on before starting transactions that write.
+     *
+     * @see #beginSnapshot(TransactionId)
+     */
+    public void setMultiVersionEnabled(boolean multiVersionEnabled) {
+        this.multiVersionEnabled = multiVersionEnabled;
+    }
+
+    /**
+     * Make tid a read-only snapshot transaction. Its reads of heap pages see
+     * the database as of the last commit before this call, take no locks,
+     * and never wait for writers; writers never wait for it either. Pages of
+     * other files, such as B+ tree pages, are still read under shared locks.
+     * Fetching any page for writing fails. Secondary indexes have no old
+     * versions, so snapshot transactions cannot use an IndexScan.
+     *
+     * @throws DbException if multi-version reads are off
+     */
+    public void beginSnapshot(TransactionId tid) throws DbException {
+        if(!multiVersionEnabled) {
+            throw new DbException("multi-version reads are not enabled");
+        }
+        versions.beginSnapshot(tid);
+    }
+
+    /** Return true if tid is a snapshot transaction started with {@link #beginSnapshot}. */
+    public boolean isSnapshot(TransactionId tid) {
+        return tid != null && versions.snapshotOf(tid) != null;
+    }
+
+    /**
+     * Set how many pages sequential scans read ahead in the background, or 0
+     * to turn read-ahead off (the default).
+     *
+     * @see SequentialPrefetcher
+     */
+    public void setPrefetchWindow(int pages) {
+        this.prefetchWindow = Math.max(0, pages);
+    }
+
+    /** Return how many pages sequential scans read ahead; 0 if read-ahead is off. */
+    public int getPrefetchWindow() {
+        return prefetchWindow;
+    }
+
+    /** Return the partition responsible for caching the given page. */
+    private Partition partitionOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitions[(h & 0x7fffffff) % partitions.length];
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -126,29 +371,298 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
+        Long snapshot = versions.snapshotOf(tid);
+        if(snapshot != null) {
+            if(perm == Permissions.READ_WRITE) {
+                throw new DbException("snapshot transaction " + tid + " cannot write " + pid);
+            }
+            // 快照读不加锁，直接取快照时间点的版本
+            if(pid instanceof HeapPageId) {
+                return versions.read((HeapPageId) pid, snapshot, this::fetchPage);
+            }
+        }
         //先获取锁
-        boolean lockAcquired = false;
-        long start = System.currentTimeMillis();
-        long timeout = new Random().nextInt(2000);
+//        boolean lockAcquired = false;
+//        long start = System.currentTimeMillis();
+//        long timeout = new Random().nextInt(2000);
 //        long timeout = 1000;
-        while(!lockAcquired){
-            long now = System.currentTimeMillis();
-            if(now - start> timeout){
-                // 获取锁超时抛出异常之前是否需要释放该事务已经有用的锁
-                throw new TransactionAbortedException();
+//        while(!lockAcquired){
+//            long now = System.currentTimeMillis();
+//            if(now - start> timeout){
+//                // 获取锁超时抛出异常之前是否需要释放该事务已经有用的锁
+//                throw new TransactionAbortedException();
+//            }
+//            lockAcquired = lockManager.acquireLock(tid,pid,perm);
+//        }
+        // 拿不到锁时在LockManager的等待队列里睡眠，冲突的锁释放时被唤醒；
+        // 会形成死锁时LockManager只让被选中的牺牲者失败，中止它
+        if(!lockManager.acquireLock(tid,pid,perm,LockManager.WAIT_FOREVER)){
+            throw new TransactionAbortedException();
+        }
+        if(perm == Permissions.READ_WRITE) {
+            recordWrite(tid, pid);
+        }
+        Page page = fetchPage(pid);
+        if(multiVersionEnabled && perm == Permissions.READ_WRITE && page instanceof HeapPage) {
+            // 写之前留一份已提交的版本给快照读
+            try {
+                versions.beforeWrite(tid, (HeapPage) page);
+            } catch (IOException e) {
+                throw new DbException("could not copy page " + pid + ": " + e.getMessage());
             }
-            lockAcquired = lockManager.acquireLock(tid,pid,perm);
         }
+        return page;
+    }
 
-        if(this.buffer.get(pid) == null) {
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            if(page == null) throw new DbException("page null");
-            if(buffer.getSize() >= numPages) evictPage();
-            buffer.put(pid, page);
+    /**
+     * Write pages with committed changes back to disk in the background
+     * every intervalMillis milliseconds, or stop doing so with 0 (the
+     * default).
+     *
+     * @see #cleanPages()
+     */
+    public synchronized void setPageCleanerInterval(long intervalMillis) {
+        if(cleanerTask != null) {
+            cleanerTask.cancel(false);
+            cleanerTask = null;
+        }
+        if(intervalMillis <= 0) {
+            if(cleaner != null) {
+                cleaner.shutdown();
+                cleaner = null;
+            }
+            return;
+        }
+        if(cleaner == null) {
+            cleaner = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "BufferPool-cleaner");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        cleanerTask = cleaner.scheduleWithFixedDelay(() -> {
+            if(Database.getBufferPool() != this) {
+                // 缓冲池已经被换掉了
+                setPageCleanerInterval(0);
+                return;
+            }
+            cleanPages();
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write back, oldest recLSN first, the pages whose only unwritten
+     * changes are committed and that are old or numerous enough: every page
+     * whose first unwritten change is more than a log segment behind the
+     * end of the log, since it keeps that segment from being truncated, and
+     * then as many more as it takes to bring the dirty page table down to
+     * half the pool, so that evictions find pages to drop without writing.
+     * Pages locked by a running transaction are skipped.
+     *
+     * @return the number of pages written
+     */
+    public int cleanPages() {
+        List<Map.Entry<PageId, Long>> oldest = new ArrayList<>(dirtyPageTable().entrySet());
+        if(oldest.isEmpty()) {
+            return 0;
+        }
+        oldest.sort(Map.Entry.comparingByValue());
+        LogFile log = Database.getLogFile();
+        long ageLimit = log.endLsn() - log.getSegmentSize();
+        int excess = oldest.size() - (int) (numPages * CLEANER_DIRTY_RATIO);
+        // 写页时用一个自己的事务加共享锁，不用等锁：拿不到说明有事务正在改这一页
+        TransactionId cleanerTid = new TransactionId();
+        int written = 0;
+        try {
+            for(Map.Entry<PageId, Long> e : oldest) {
+                if(e.getValue() >= ageLimit && written >= excess) {
+                    break;
+                }
+                PageId pid = e.getKey();
+                if(!lockManager.acquireLock(cleanerTid, pid, Permissions.READ_ONLY)) {
+                    continue;
+                }
+                Page page = cachedPage(pid);
+                if(page != null && page.isDirty() == null && recLsns.containsKey(pid)) {
+                    flushPage(page);
+                    written++;
+                }
+                lockManager.releaseLock(cleanerTid, pid);
+            }
+        } finally {
+            lockManager.releaseAllLock(cleanerTid);
+        }
+        return written;
+    }
+
+    /** Return the cached version of pid, reading it from disk on a miss. */
+    private Page fetchPage(PageId pid) throws DbException {
+        Partition partition = partitionOf(pid);
+        Page page = partition.pages.get(pid);
+        if(page != null) {
+            partition.policy.pageHit(pid);
+            partition.policy.getStats().recordHit();
             return page;
         }
-        return this.buffer.get(pid);
+        partition.policy.getStats().recordMiss();
+        // 未命中时在分区锁之外读盘，避免一次磁盘IO阻塞同一分区上的其他命中
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        page = dbFile.readPage(pid);
+        if(page == null) throw new DbException("page null");
+        return cachePage(partition, page, false);
+    }
+
+    /**
+     * Read up to count pages into the pool in the background, starting with
+     * first and following successor from each page to the next one; a null
+     * successor ends the chain. Pages that are already cached are not read
+     * again but are still followed, so a B+ tree leaf chain can be walked
+     * past leaves the scan already has.
+     * <p>
+     * Read-ahead takes no locks: it only installs the on-disk version of a
+     * page that is not cached yet, which is what the transaction's own getPage
+     * would have read, and it only replaces clean pages. The request is
+     * dropped if too many are already queued.
+     *
+     * @param first the first page to read
+     * @param count the maximum number of pages to read
+     * @param successor returns the id of the page after the given one, or null
+     */
+    public void prefetch(PageId first, int count, Function<Page, PageId> successor) {
+        if(first == null || count <= 0) {
+            return;
+        }
+        prefetchExecutor().execute(() -> {
+            PageId pid = first;
+            for(int i = 0; i < count && pid != null; i++) {
+                Page page = prefetchPage(pid);
+                if(page == null) {
+                    return;
+                }
+                pid = successor.apply(page);
+            }
+        });
+    }
+
+    private ExecutorService prefetchExecutor() {
+        ExecutorService executor = prefetcher;
+        if(executor == null) {
+            synchronized (this) {
+                executor = prefetcher;
+                if(executor == null) {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                            10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                                Thread t = new Thread(r, "BufferPool-prefetch");
+                                t.setDaemon(true);
+                                return t;
+                            }, new ThreadPoolExecutor.DiscardPolicy());
+                    pool.allowCoreThreadTimeOut(true);
+                    prefetcher = executor = pool;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Return the cached version of pid, or read it from disk and install it
+     * if that does not need to evict a dirty page.
+     *
+     * @return the page, or null if it could not be read
+     */
+    private Page prefetchPage(PageId pid) {
+        Partition partition = partitionOf(pid);
+        Page page = partition.pages.get(pid);
+        if(page != null) {
+            return page;
+        }
+        long epoch = discards.get();
+        try {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            page = dbFile.readPage(pid);
+        } catch (RuntimeException e) {
+            // 页不存在（比如已经读到了文件末尾），预读到此为止
+            return null;
+        }
+        if(page == null) {
+            return null;
+        }
+        synchronized (partition) {
+            Page cached = partition.pages.get(pid);
+            if(cached != null) {
+                return cached;
+            }
+            if(epoch != discards.get()) {
+                return page;
+            }
+            if(partition.pages.size() >= partition.capacity) {
+                // 和evictPage的第一轮一样只淘汰干净页：已提交但还没写回磁盘的页也不能丢
+                PageId victim = partition.policy.chooseVictim(p -> {
+                    Page v = partition.pages.get(p);
+//                    return v == null || v.isDirty() == null;
+                    return v == null || (v.isDirty() == null && !recLsns.containsKey(p));
+                });
+                if(victim == null) {
+                    return page;
+                }
+                partition.remove(victim);
+                partition.policy.getStats().recordEviction();
+            }
+            partition.admit(page);
+            partition.policy.getStats().recordPrefetch();
+        }
+        return page;
+    }
+
+    /**
+     * Remember that tid may dirty the given page, so that completing tid and
+     * flushing all pages only have to look at the pages in the write sets.
+     */
+    private void recordWrite(TransactionId tid, PageId pid) {
+        if(tid == null) {
+            return;
+        }
+        writeSets.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+        dirtyPages.put(pid, tid);
+    }
+
+    /** Return the cached version of a page, or null if it is not cached. */
+    private Page cachedPage(PageId pid) {
+        return partitionOf(pid).pages.get(pid);
+    }
+
+    /**
+     * Install a page into its partition, evicting pages from that partition
+     * until there is room.
+     *
+     * @param partition the partition responsible for the page
+     * @param page the page to install
+     * @param replace if true, an already cached version of the page is
+     *   replaced; otherwise the cached version wins and is returned
+     * @return the page that is cached after the call
+     */
+    private Page cachePage(Partition partition, Page page, boolean replace)
+            throws DbException {
+        PageId pid = page.getId();
+        while(true) {
+            synchronized (partition) {
+                Page cached = partition.pages.get(pid);
+                if(cached != null && !replace) {
+                    // 另一个线程已经把这个页读进来了
+                    return cached;
+                }
+                if(cached != null) {
+                    partition.pages.put(pid, page);
+                    partition.policy.pageHit(pid);
+                    return page;
+                }
+                if(partition.pages.size() < partition.capacity) {
+                    partition.admit(page);
+                    return page;
+                }
+            }
+            evictPage(partition);
+        }
     }
 
     /**
@@ -195,7 +709,8 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         if(commit) {
-            // 在事务提交时，您应该强制将脏页写入磁盘（例如，将页写出）（这是 FORCE）
+//            // 在事务提交时，您应该强制将脏页写入磁盘（例如，将页写出）（这是 FORCE）
+            // NO-FORCE：提交时只写日志，页留在脏页表里，淘汰或检查点时再写盘
             try{
                 flushPages(tid);
             } catch (IOException e) {
@@ -204,28 +719,75 @@ public class BufferPool {
         } else {
             rollback(tid);
         }
+        Set<PageId> writeSet = writeSets.remove(tid);
+        if(writeSet != null && multiVersionEnabled) {
+            if(commit) {
+                versions.commit(tid, writeSet);
+            } else {
+                versions.abort(tid, writeSet);
+            }
+        }
+        versions.endSnapshot(tid);
+        if(writeSet != null) {
+            for(PageId pid : writeSet) {
+                // 只有最后一个写者还是tid时才移除，页可能已经被后面的事务写过了
+                dirtyPages.remove(pid, tid);
+            }
+        }
         lockManager.releaseAllLock(tid);
     }
 
     private synchronized void rollback(TransactionId tid) {
-        LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
-        LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
-        while(head != tail) {
-            Page page = head.value;
-            LRUCache<PageId, Page>.DLinkedNode next = head.next;
+        Set<PageId> writeSet = writeSets.get(tid);
+        if(writeSet == null) {
+            return;
+        }
+        for(PageId pid : new ArrayList<>(writeSet)) {
+            Page page = cachedPage(pid);
             if(page != null && page.isDirty() != null && page.isDirty().equals(tid)) {
-                buffer.remove(head);
+                Partition partition = partitionOf(pid);
+                if(recLsns.containsKey(pid)) {
+                    // 磁盘上还没有之前事务提交的修改，用内存里的前像恢复
+                    Page before = page.getBeforeImage();
+                    before.setLSN(page.getLSN());
+                    synchronized (partition) {
+                        partition.remove(pid);
+                        partition.admit(before);
+                    }
+                    restoreFreeSpace(before);
+                    continue;
+                }
+                synchronized (partition) {
+                    partition.remove(pid);
+                }
                 try {
-                    Page page1 = Database.getBufferPool().getPage(tid, page.getId(), Permissions.READ_ONLY);
+                    Page page1 = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
                     page1.markDirty(false, null);
+                    restoreFreeSpace(page1);
                 } catch (TransactionAbortedException e) {
                     e.printStackTrace();
                 } catch (DbException e) {
                     e.printStackTrace();
                 }
+            }
+        }
+    }
 
+    /**
+     * Reset the free space map bit of a heap page restored by rollback: an
+     * aborted insert may have marked the page full.
+     */
+    private void restoreFreeSpace(Page page) {
+        if(!(page instanceof HeapPage)) {
+            return;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        if(file instanceof HeapFile) {
+            try {
+                ((HeapFile) file).pageRestored((HeapPage) page);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            head = next;
         }
     }
 
@@ -238,7 +800,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The tuple is also added to
+     * every secondary index on the table.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -250,11 +813,44 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         //注意，insertTuple函数并不会
-        List<Page> pages = dbFile.insertTuple(tid, t);
+//        List<Page> pages = dbFile.insertTuple(tid, t);
+        List<Page> pages = new ArrayList<>(dbFile.insertTuple(tid, t));
+        // 记录插入以后才有RecordId，再把它加到表上的每个二级索引里，索引页和表页一样算作这个事务弄脏的页
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)){
+            pages.addAll(index.insertTuple(tid, t));
+        }
         for(Page page : pages){
             page.markDirty(true,tid);
-            // put方法中当脏页被移除时没有触发刷盘
-            buffer.put(page.getId(),page);
+            recordWrite(tid, page.getId());
+            // 通过cachePage放入，分区满时走正常的淘汰流程（脏页会先刷盘）
+            cachePage(partitionOf(page.getId()), page, true);
+        }
+    }
+
+    /**
+     * Load tuples into an empty B+ tree table bottom-up on behalf of transaction
+     * tid, sorting as many tuples in memory at a time as fit in this buffer pool.
+     * The new pages are written straight to the file; the pages that were
+     * dirtied in the BufferPool (the root pointer) are marked dirty as in
+     * insertTuple.
+     *
+     * @param tid the transaction loading the tuples
+     * @param tableId the B+ tree table to load
+     * @param tuples the tuples to load
+     * @param fillFactor the fraction of each leaf page to fill, in (0, 1]
+     * @see BTreeFile#bulkLoad(TransactionId, DbFileIterator, double, int)
+     */
+    public void bulkLoad(TransactionId tid, int tableId, DbFileIterator tuples, double fillFactor)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if(!(dbFile instanceof BTreeFile)) {
+            throw new DbException("bulk load needs a B+ tree table");
+        }
+        List<Page> pages = ((BTreeFile) dbFile).bulkLoad(tid, tuples, fillFactor, numPages);
+        for(Page page : pages){
+            page.markDirty(true,tid);
+            recordWrite(tid, page.getId());
+            cachePage(partitionOf(page.getId()), page, true);
         }
     }
 
@@ -266,7 +862,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The tuple is also removed
+     * from every secondary index on its table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -275,10 +872,20 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        List<Page> pages = dbFile.deleteTuple(tid,t);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+//        List<Page> pages = dbFile.deleteTuple(tid,t);
+        // 先删索引项：删除记录以后它的RecordId就不再有效了
+        List<Page> pages = new ArrayList<>();
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)){
+            pages.addAll(index.deleteTuple(tid, t));
+        }
+        pages.addAll(dbFile.deleteTuple(tid,t));
         for(Page page: pages){
             page.markDirty(true,tid);
+            recordWrite(tid, page.getId());
+            // 和insertTuple一样放回缓存：合并、借entry时读进来的页可能在这次删除里已经被当作干净页淘汰了
+            cachePage(partitionOf(page.getId()), page, true);
         }
     }
 
@@ -290,27 +897,25 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
-        LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
-        while (head != tail) {
-            Page page = head.value;
-            if(page != null && page.isDirty() != null) {
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                try {
-                    Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
-                    Database.getLogFile().force();
-                    page.markDirty(false,null);
-                    dbFile.writePage(page);
-                    page.setBeforeImage();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        Set<PageId> pids = new HashSet<>(dirtyPages.keySet());
+        pids.addAll(recLsns.keySet());
+        for(PageId pid : pids) {
+            Page page = cachedPage(pid);
+            if(page != null) {
+                flushPage(page);
             }
-//            flushPage(page.getId());
-            head = head.next;
         }
     }
 
+    /**
+     * Return a copy of the dirty page table: every page whose logged
+     * changes may not be on disk yet, with the LSN of the first log record
+     * that changed it since it was last written.
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<>(recLsns);
+    }
+
     /** Remove the specific page id from the buffer pool.
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
@@ -322,16 +927,13 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
-        LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
-        while(head!=tail){
-            PageId key = head.key;
-            if(key!=null && key.equals(pid)){
-                buffer.remove(head);
-                return;
-            }
-            head = head.next;
+        Partition partition = partitionOf(pid);
+        synchronized (partition) {
+            discards.incrementAndGet();
+            partition.remove(pid);
         }
+        dirtyPages.remove(pid);
+        recLsns.remove(pid);
     }
 
     /**
@@ -341,15 +943,33 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = buffer.get(pid);
-        if(page.isDirty() != null) {
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page page = cachedPage(pid);
+        if(page != null) {
+            flushPage(page);
+        }
+    }
+
+    /**
+     * Writes a page to disk if it is dirty or has committed changes that
+     * are not on disk yet. A page dirtied by a running transaction is
+     * logged first; either way the log is forced up to the page's LSN
+     * before the page is written.
+     * @param page the page to flush
+     */
+    private synchronized void flushPage(Page page) {
+        if(page.isDirty() != null || recLsns.containsKey(page.getId())) {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
             try {
-                Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
-                Database.getLogFile().force();
+                if(page.isDirty() != null) {
+                    Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
+                }
+//                Database.getLogFile().force();
+                // 写盘前日志只需要刷到这一页的记录为止
+                Database.getLogFile().forceTo(page.getLSN());
                 page.markDirty(false, null);
                 dbFile.writePage(page);
                 page.setBeforeImage();
+                recLsns.remove(page.getId());
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -361,15 +981,18 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
-        LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
-        while(head != tail) {
-            Page page = head.value;
+        Set<PageId> writeSet = writeSets.get(tid);
+        if(writeSet == null) {
+            return;
+        }
+        for(PageId pid : new ArrayList<>(writeSet)) {
+            Page page = cachedPage(pid);
             if(page != null && page.isDirty() != null && page.isDirty().equals(tid)) {
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
                 try {
                     Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
-                    Database.getLogFile().force();
+                    // 提交时页不写盘，不用每页刷一次日志；logCommit刷盘时会把这些记录一起刷下去
+//                    Database.getLogFile().force();
+                    recLsns.putIfAbsent(pid, page.getLSN());
 
                     page.markDirty(false, null);
 //                    dbFile.writePage(page);
@@ -378,49 +1001,78 @@ public class BufferPool {
                     e.printStackTrace();
                 }
             }
-            head = head.next;
         }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * The partition's EvictionPolicy is asked for a clean victim first, so
+     * pages dirtied by running transactions stay in memory (NO STEAL). Next
+     * come pages that only hold committed changes not yet on disk (commits
+     * do not write pages); one is written back and evicted. Only if every
+     * page of the partition is dirtied by a running transaction, and steal
+     * is enabled, is such a page flushed to disk (after logging it) and
+     * evicted.
+     *
+     * The partition lock is never held while calling into the log or the
+     * DbFile, so the LogFile -> BufferPool lock order used by recovery and
+     * checkpoints cannot deadlock against an evicting thread.
+     *
+     * @param partition the partition to evict a page from
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(Partition partition) throws DbException {
         // some code goes here
         // not necessary for lab1
-        Page page = buffer.getTail().prev.value;
-        if(page != null && page.isDirty() != null) {
+        PageId victim;
+        Page page;
+        synchronized (partition) {
+            victim = partition.policy.chooseVictim(pid -> {
+                Page p = partition.pages.get(pid);
+                return p == null || (p.isDirty() == null && !recLsns.containsKey(pid));
+            });
+            if(victim != null) {
+                partition.remove(victim);
+                partition.policy.getStats().recordEviction();
+                return;
+            }
+            if(partition.pages.isEmpty()) {
+                // 分区已经被其他线程清空了
+                return;
+            }
+            // 没有干净页：先选只有已提交修改的页，写回磁盘后淘汰，这不算STEAL
+            victim = partition.policy.chooseVictim(pid -> {
+                Page p = partition.pages.get(pid);
+                return p == null || p.isDirty() == null;
+            });
+            if(victim == null) {
+                if(!stealEnabled) {
+                    throw new DbException("all pages in the buffer pool partition are dirty");
+                }
+                // 全是脏页：退回STEAL，按置换策略的顺序选一个脏页
+                victim = partition.policy.chooseVictim(pid -> true);
+                if(victim == null) {
+                    return;
+                }
+            }
+            page = partition.pages.get(victim);
+        }
+        if(page != null) {
+            boolean steal = page.isDirty() != null;
             //将脏页写入磁盘
-            try {
-                flushPage(page.getId());
-            }catch (IOException e) {
-                e.printStackTrace();
+            flushPage(page);
+            if(steal) {
+                partition.policy.getStats().recordSteal();
             }
-            // lab4 ex3 需要选取一个非脏页进行置换
-//            findNotDirty();
-        } else {
-            //不是脏页没改过，不需要写磁盘
-//            discardPage(page.getId());
-            buffer.discard();
         }
-    }
-
-    // 从LRU链表中从后往前找到第一个非脏页并移除
-    private void findNotDirty() throws DbException {
-        LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
-        LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
-        tail = tail.prev;
-        while (head != tail) {
-            Page value = tail.value;
-            if (value != null && value.isDirty() == null) {
-                buffer.remove(tail);
-                return;
+        synchronized (partition) {
+            // 刷盘期间页可能被替换或再次弄脏，这种情况下留给下一轮淘汰
+            if(partition.pages.get(victim) == page
+                    && (page == null || (page.isDirty() == null && !recLsns.containsKey(victim)))) {
+                partition.remove(victim);
+                partition.policy.getStats().recordEviction();
             }
-            tail = tail.prev;
         }
-        //没有非脏页，抛出异常
-        throw new DbException("no dirty page");
     }
 
 }
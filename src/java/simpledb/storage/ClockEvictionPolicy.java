@@ -0,0 +1,181 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK置换策略（简化版的CLOCK-Pro）
+ * <p>
+ * Tracked pages live in a fixed ring of frames swept by a single clock hand.
+ * Every frame carries a reference bit, which a hit sets with a plain volatile
+ * write: the hit path takes no monitor and does not relink anything.
+ * <p>
+ * Frames are either hot or cold. A page enters the ring cold; the hand
+ * evicts cold frames whose reference bit is clear and gives referenced cold
+ * frames a second chance by promoting them to hot. Hot frames are only
+ * demoted back to cold while there are more of them than {@link #hotTarget},
+ * so hot pages cannot be pushed out by a stream of pages that are touched only
+ * once. Ids of evicted cold pages are remembered for a while as non-resident
+ * "test" entries; a page that misses again during its test period was evicted
+ * too early and comes back hot if there is room in the hot set.
+ * <p>
+ * The effect is that a SeqScan over a table much larger than the pool cycles
+ * through the cold frames only, while B+ tree internal pages and other pages
+ * that are used repeatedly stay cached across the scan.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        final int slot;
+        volatile boolean referenced;
+        boolean hot;
+
+        Frame(PageId pid, int slot, boolean hot) {
+            this.pid = pid;
+            this.slot = slot;
+            this.hot = hot;
+        }
+    }
+
+    // 命中路径不加锁读取，所以用ConcurrentHashMap
+    private final Map<PageId, Frame> index = new ConcurrentHashMap<>();
+    private final Frame[] frames;
+    // 空闲frame的下标，用数组实现的栈
+    private final int[] freeSlots;
+    private int numFree;
+    private int hand;
+    private final int capacity;
+
+    // 最多允许多少个hot frame，剩下的frame留给新进入的cold页
+    private final int hotTarget;
+    private int numHot;
+
+    // 最近被淘汰的cold页（不在缓存中），在测试期内再次被访问说明它应该是hot的
+    private final LinkedHashSet<PageId> testPages = new LinkedHashSet<>();
+    // chooseVictim选出的最后一个victim，pageRemoved时用来判断是不是被淘汰的
+    private PageId lastVictim;
+
+    private final EvictionStats stats = new EvictionStats();
+
+    public ClockEvictionPolicy(int capacity) {
+        this.capacity = capacity;
+        this.hotTarget = Math.max(1, capacity - Math.max(1, capacity / 4));
+        this.frames = new Frame[capacity];
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        this.numFree = capacity;
+        this.hand = 0;
+    }
+
+    /**
+     * 命中路径：只读ConcurrentHashMap并设置引用位，不加锁
+     */
+    public void pageHit(PageId pid) {
+        Frame frame = index.get(pid);
+        if (frame != null && !frame.referenced) {
+            frame.referenced = true;
+        }
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if (index.containsKey(pid)) {
+            pageHit(pid);
+            return;
+        }
+        if (numFree == 0) {
+            throw new IllegalStateException("ClockEvictionPolicy is full");
+        }
+        // 测试期内被再次访问的页直接作为hot页进入，但不挤占已有的hot页
+        boolean hot = testPages.remove(pid) && numHot < hotTarget;
+        int slot = freeSlots[--numFree];
+        Frame frame = new Frame(pid, slot, hot);
+        if (hot) numHot++;
+        frames[slot] = frame;
+        index.put(pid, frame);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Frame frame = index.remove(pid);
+        if (frame == null) return;
+        frames[frame.slot] = null;
+        freeSlots[numFree++] = frame.slot;
+        if (frame.hot) {
+            numHot--;
+        } else if (pid.equals(lastVictim)) {
+            // 被淘汰的cold页进入测试期，最多记住capacity个
+            testPages.add(pid);
+            if (testPages.size() > capacity) {
+                Iterator<PageId> it = testPages.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        if (pid.equals(lastVictim)) {
+            lastVictim = null;
+        }
+    }
+
+    /**
+     * 转动时钟指针：
+     * <ul>
+     * <li> cold且引用位为1：清除引用位并升级为hot
+     * <li> cold且引用位为0：不能淘汰（脏页）就跳过，否则就是victim
+     * <li> hot且引用位为1：清除引用位
+     * <li> hot且引用位为0：hot页过多（或者全部都是hot页）时降级为cold
+     * </ul>
+     * 指针停在victim的下一个位置，这样填进这个位置的新页要等一整圈才会被再次考虑。
+     * 转了三圈还没找到可以淘汰的页就返回null。
+     */
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        if (numFree == capacity) return null;
+        int scanned = 0;
+        try {
+            for (int steps = 0; steps < 3 * capacity; steps++) {
+                Frame frame = frames[hand];
+                hand = (hand + 1) % capacity;
+                if (frame == null) continue;
+                scanned++;
+                if (frame.hot) {
+                    if (frame.referenced) {
+                        frame.referenced = false;
+                    } else if (numHot > hotTarget || numHot == capacity - numFree) {
+                        frame.hot = false;
+                        numHot--;
+                    }
+                    continue;
+                }
+                if (frame.referenced) {
+                    frame.referenced = false;
+                    frame.hot = true;
+                    numHot++;
+                    continue;
+                }
+                if (!evictable.test(frame.pid)) {
+                    stats.recordDirtySkip();
+                    continue;
+                }
+                lastVictim = frame.pid;
+                return frame.pid;
+            }
+            return null;
+        } finally {
+            stats.recordScan(scanned);
+        }
+    }
+
+    /** Return true if the page is tracked as a hot page. */
+    synchronized boolean isHot(PageId pid) {
+        Frame frame = index.get(pid);
+        return frame != null && frame.hot;
+    }
+
+    public EvictionStats getStats() {
+        return stats;
+    }
+}
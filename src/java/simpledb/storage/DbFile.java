@@ -93,4 +93,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Close the files this DbFile keeps open, such as when the Catalog drops
+     * it. The DbFile may still be used afterwards; its files are reopened on
+     * demand.
+     */
+    default void close() throws IOException {
+    }
 }
@@ -0,0 +1,196 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The FileChannel behind a DbFile. The channel is opened on first use and
+ * kept open until the DbFile is closed, and all reads and writes are
+ * positional, so concurrent page reads neither reopen the file nor serialize
+ * on a shared file pointer.
+ * <p>
+ * {@link #length} asks the open channel for its size (an fstat on the open
+ * descriptor rather than a lookup of the path), so pages appended to the file
+ * by other writers, as some tests do, are still seen. Callers that need the
+ * number of pages repeatedly, such as a scan, should take it once.
+ * <p>
+ * {@link #mapped} gives read-only access to the file through memory mapped
+ * regions of {@link #MAP_CHUNK_SIZE} bytes, so files larger than the 2GB a
+ * single MappedByteBuffer can cover are mapped piece by piece.
+ * <p>
+ * The JDK closes a FileChannel when a thread doing I/O on it is interrupted,
+ * and {@link #close} may close it under a thread that is about to use it. An
+ * operation that finds the channel closed reopens it and is retried once, so
+ * one interrupted transaction does not make the file unusable for all others.
+ */
+public class DbFileChannel {
+
+    /** Size of one memory mapped region. A multiple of every power of two page size up to 64MB. */
+    public static final int MAP_CHUNK_SIZE = 1 << 26;
+
+    private final File file;
+    private volatile FileChannel channel;
+    // 已经映射的区域：区域编号 -> MappedByteBuffer
+    private final Map<Long, MappedByteBuffer> chunks = new ConcurrentHashMap<>();
+
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    /** An I/O operation on the channel, retried once if the channel turns out to be closed. */
+    private interface ChannelOp<T> {
+        T apply(FileChannel ch) throws IOException;
+    }
+
+    /** 第一次使用时才打开文件，没有写权限的文件以只读方式打开；被关掉了（比如线程被中断）就重新打开 */
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    RandomAccessFile raf;
+                    try {
+                        raf = new RandomAccessFile(file, "rw");
+                    } catch (FileNotFoundException e) {
+                        raf = new RandomAccessFile(file, "r");
+                    }
+                    ch = raf.getChannel();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Run op on the channel. If the channel was closed, by close() or by the
+     * interrupt of some thread doing I/O on it, reopen it and run op again.
+     * op must be safe to repeat, as positional reads and writes are.
+     */
+    private <T> T withChannel(ChannelOp<T> op) throws IOException {
+        try {
+            return op.apply(channel());
+        } catch (ClosedChannelException e) {
+            // 本线程被中断的话，重试前先清掉中断标记，否则新打开的channel马上又会被关掉；做完再恢复
+            boolean interrupted = Thread.interrupted();
+            try {
+                return op.apply(channel());
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read up to buf.length bytes starting at position.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *   end of the file
+     */
+    public int read(byte[] buf, long position) throws IOException {
+        return withChannel(ch -> {
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (bb.hasRemaining()) {
+                int n = ch.read(bb, position + bb.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+            return bb.position() == 0 && buf.length > 0 ? -1 : bb.position();
+        });
+    }
+
+    /** Write all of data starting at position, extending the file if needed. */
+    public void write(byte[] data, long position) throws IOException {
+        withChannel(ch -> {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            while (bb.hasRemaining()) {
+                ch.write(bb, position + bb.position());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Append data at the end of the file.
+     *
+     * @return the position the data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        // 先定下位置再写，重试写的时候不会把数据追加两次
+        long position = withChannel(FileChannel::size);
+        write(data, position);
+        return position;
+    }
+
+    /** Return the length of the file in bytes. A file that does not exist is empty. */
+    public long length() throws IOException {
+        if (channel == null && !file.exists()) {
+            return 0;
+        }
+        return withChannel(FileChannel::size);
+    }
+
+    /**
+     * Return a read-only view of size bytes of the file starting at position,
+     * backed directly by a memory mapped region of the file; no bytes are
+     * copied. Writes made through this channel are visible through the view.
+     *
+     * @return the view, or null if the range lies past the end of the file or
+     *   crosses the boundary between two mapped regions
+     */
+    public ByteBuffer mapped(long position, int size) throws IOException {
+        long chunk = position / MAP_CHUNK_SIZE;
+        int offset = (int) (position % MAP_CHUNK_SIZE);
+        if (offset + size > MAP_CHUNK_SIZE) {
+            return null;
+        }
+        MappedByteBuffer region = chunks.get(chunk);
+        if (region == null || region.capacity() < offset + size) {
+            // 还没有映射，或者映射之后文件变长了，重新映射这一段
+            long start = chunk * MAP_CHUNK_SIZE;
+            region = withChannel(ch -> {
+                long len = Math.min(MAP_CHUNK_SIZE, ch.size() - start);
+                return len < offset + size ? null : ch.map(FileChannel.MapMode.READ_ONLY, start, len);
+            });
+            if (region == null) {
+                return null;
+            }
+            chunks.put(chunk, region);
+        }
+        // duplicate之后每个读者有自己的position，多个线程可以同时读同一段映射
+        ByteBuffer view = region.duplicate();
+        view.position(offset);
+        view.limit(offset + size);
+        return view.slice();
+    }
+
+    /** Force all writes to the storage device. */
+    public void force() throws IOException {
+        withChannel(ch -> {
+            ch.force(false);
+            return null;
+        });
+    }
+
+    /** Close the channel; it is reopened if the file is used again. */
+    public synchronized void close() throws IOException {
+        // 映射的区域没法主动解除，GC回收MappedByteBuffer时才会unmap
+        chunks.clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * An EvictionPolicy decides which page of a BufferPool partition is replaced
+ * next. The partition owns the pages; the policy only tracks PageIds and is
+ * told about every hit, admission and removal.
+ * <p>
+ * {@link #pageHit} is called on the getPage hit path without the partition
+ * lock held, so implementations have to make it thread safe on their own
+ * (and should keep it cheap). All other methods are called while the
+ * BufferPool holds the partition lock.
+ *
+ * @see ReplacementPolicy
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /** A cached page was accessed. */
+    void pageHit(PageId pid);
+
+    /** A page was added to the partition. */
+    void pageAdmitted(PageId pid);
+
+    /** A page was removed from the partition, by eviction or by discardPage. */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose the next page to evict among the pages that satisfy evictable.
+     * The BufferPool passes a predicate that rejects pages dirtied by running
+     * transactions (NO STEAL); rejected pages are skipped and counted in
+     * {@link EvictionStats#getDirtySkips()}. The chosen page is not removed
+     * until {@link #pageRemoved} is called.
+     *
+     * @param evictable the pages that may be evicted
+     * @return the page to evict, or null if no tracked page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /** Return the counters of this policy instance. */
+    EvictionStats getStats();
+}
@@ -0,0 +1,118 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters kept for one EvictionPolicy: how often the pool hit and missed,
+ * how many pages were evicted, how many dirty pages had to be skipped to find
+ * a victim, and how many pages the policy examined while choosing victims.
+ * <p>
+ * LongAdder is used so that recording a hit from many threads does not
+ * bounce a shared counter between cores.
+ */
+public class EvictionStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder dirtySkips = new LongAdder();
+    private final LongAdder scanLength = new LongAdder();
+    private final LongAdder steals = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordDirtySkip() {
+        dirtySkips.increment();
+    }
+
+    /** Record that the policy examined n pages while choosing a victim. */
+    void recordScan(int n) {
+        scanLength.add(n);
+    }
+
+    void recordSteal() {
+        steals.increment();
+    }
+
+    void recordPrefetch() {
+        prefetches.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Return the number of dirty pages passed over while choosing victims. */
+    public long getDirtySkips() {
+        return dirtySkips.sum();
+    }
+
+    /** Return the total number of pages examined while choosing victims. */
+    public long getScanLength() {
+        return scanLength.sum();
+    }
+
+    /** Return the number of dirty pages flushed and evicted because no clean page was left. */
+    public long getSteals() {
+        return steals.sum();
+    }
+
+    /** Return the number of pages read into the pool ahead of a sequential scan. */
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Return the average number of pages examined per eviction. */
+    public double getAverageScanLength() {
+        long e = getEvictions();
+        return e == 0 ? 0.0 : (double) getScanLength() / e;
+    }
+
+    /** Add the counters of other into this object. */
+    void add(EvictionStats other) {
+        hits.add(other.getHits());
+        misses.add(other.getMisses());
+        evictions.add(other.getEvictions());
+        dirtySkips.add(other.getDirtySkips());
+        scanLength.add(other.getScanLength());
+        steals.add(other.getSteals());
+        prefetches.add(other.getPrefetches());
+    }
+
+    @Override
+    public String toString() {
+        return "EvictionStats{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                ", dirtySkips=" + getDirtySkips() +
+                ", scanLength=" + getScanLength() +
+                ", steals=" + getSteals() +
+                ", prefetches=" + getPrefetches() +
+                '}';
+    }
+}
@@ -0,0 +1,124 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+
+/**
+ * Free-space map of a HeapFile: one bit per page, set when the page is known
+ * to be full. It lets inserts skip straight past full pages instead of
+ * locking and reading every page of the file.
+ * <p>
+ * The map is kept in a sidecar file next to the heap file (the heap file's
+ * name plus {@link #SUFFIX}), laid out like a HeapPage header: bit i of byte
+ * i/8 belongs to page i. Every change is written through, one byte at a time.
+ * <p>
+ * The map is only a hint. A page that is not marked full may still be full,
+ * so inserts must check the page and mark it when they find it full. Pages
+ * past the end of the map, such as pages appended by other writers, are not
+ * marked full. A page marked full by a transaction that later aborts is
+ * unmarked again when the BufferPool rolls the page back.
+ * <p>
+ * Since the map is only a hint, losing it is harmless. The sidecar of a heap
+ * file in the temporary directory, such as a table created by a test, is
+ * deleted when the JVM exits, like the temporary heap file itself.
+ */
+public class FreeSpaceMap {
+
+    /** Suffix of the sidecar file that stores the map. */
+    public static final String SUFFIX = ".fsm";
+
+    private final DbFileChannel channel;
+    private final File file;
+    // 懒加载，第一次使用时从sidecar文件读进来
+    private BitSet full;
+
+    public FreeSpaceMap(File heapFile) {
+        this.file = sidecar(heapFile);
+        this.channel = new DbFileChannel(file);
+    }
+
+    private static File sidecar(File heapFile) {
+        return new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /** Returns true if f is in the temporary directory. */
+    private static boolean isTemporary(File f) {
+        Path tmp = Paths.get(System.getProperty("java.io.tmpdir")).toAbsolutePath().normalize();
+        return f.toPath().toAbsolutePath().normalize().startsWith(tmp);
+    }
+
+    /**
+     * Delete the map of heapFile, for callers that rewrite the heap file from
+     * scratch and would otherwise inherit hints about the old contents.
+     */
+    public static void discard(File heapFile) {
+        File f = sidecar(heapFile);
+        if (f.exists() && !f.delete()) {
+            throw new RuntimeException("could not delete " + f);
+        }
+    }
+
+    private BitSet bits() throws IOException {
+        if (full == null) {
+            byte[] data = new byte[(int) channel.length()];
+            if (data.length > 0) {
+                channel.read(data, 0);
+            }
+            full = BitSet.valueOf(data);
+        }
+        return full;
+    }
+
+    /**
+     * Returns the first page at or after from, and before numPages, that is
+     * not known to be full, or -1 if there is none.
+     */
+    public synchronized int nextCandidate(int from, int numPages) throws IOException {
+        int pgNo = bits().nextClearBit(from);
+        return pgNo < numPages ? pgNo : -1;
+    }
+
+    /** Returns true if page pgNo is marked full. */
+    public synchronized boolean isFull(int pgNo) throws IOException {
+        return bits().get(pgNo);
+    }
+
+    /**
+     * Mark page pgNo as full or as having free space, writing the change
+     * through to the sidecar file if the bit changed.
+     */
+    public synchronized void setFull(int pgNo, boolean isFull) throws IOException {
+        BitSet bits = bits();
+        if (bits.get(pgNo) == isFull) {
+            return;
+        }
+        bits.set(pgNo, isFull);
+        // 只写回这一位所在的那个字节
+        int index = pgNo / 8;
+        byte b = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            if (bits.get(index * 8 + bit)) {
+                b |= (byte) (1 << bit);
+            }
+        }
+        if (!file.exists()) {
+            if (!isFull) {
+                // 没有sidecar文件时所有页都算有空间，不用为了清一位去创建它
+                return;
+            }
+            // 临时目录里的堆文件（测试建的表）退出时会被删掉，sidecar也跟着删，不然会越积越多
+            if (isTemporary(file)) {
+                file.deleteOnExit();
+            }
+        }
+        channel.write(new byte[]{b}, index);
+    }
+
+    /** Close the sidecar file. */
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
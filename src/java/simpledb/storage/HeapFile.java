@@ -4,10 +4,12 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -24,6 +26,13 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tupleDesc;
+    // 整个HeapFile生命周期内共用一个FileChannel，按位置读写页；文件长度每次都向打开的channel要（fstat），不缓存
+    // catalog不再用这个表的时候通过close()关掉
+    private final DbFileChannel channel;
+    // 只读为主的表可以打开mmap模式，readPage直接从映射的区域解析页
+    private volatile boolean memoryMapped;
+    // 记录哪些页已经满了，插入时直接跳过这些页
+    private final FreeSpaceMap freeSpaceMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -36,6 +45,28 @@ public class HeapFile implements DbFile {
         // some code goes here
         file = f;
         tupleDesc = td;
+        channel = new DbFileChannel(f);
+        freeSpaceMap = new FreeSpaceMap(f);
+    }
+
+    /**
+     * Turn the memory mapped read path on or off. When it is on, readPage
+     * decodes pages straight out of memory mapped regions of the file, so the
+     * OS page cache serves full scans without a read system call or a byte
+     * array per page; a page's bytes are copied only when it is first
+     * modified, to keep its before image. Writes are unaffected and remain
+     * visible to mapped reads. Meant for read-mostly tables; pages that cannot be mapped fall
+     * back to a normal read.
+     *
+     * @see DbFileChannel#mapped(long, int)
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /** Return true if the memory mapped read path is on. */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -74,23 +105,37 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        channel.close();
+        freeSpaceMap.close();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
         HeapPage heapPage = null;
         int pageSize = BufferPool.getPageSize();
-        byte[] buf = new byte[pageSize];
 
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
-            randomAccessFile.seek((long)pid.getPageNumber()*pageSize);
-            if(randomAccessFile.read(buf)==-1){
+            if(memoryMapped) {
+                ByteBuffer mapped = channel.mapped((long)pid.getPageNumber()*pageSize, pageSize);
+                if(mapped != null) {
+                    return new HeapPage((HeapPageId) pid, mapped);
+                }
+            }
+            byte[] buf = new byte[pageSize];
+//            RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
+//            randomAccessFile.seek((long)pid.getPageNumber()*pageSize);
+//            if(randomAccessFile.read(buf)==-1){
+//                return null;
+//            }
+//            heapPage= new HeapPage((HeapPageId) pid, buf);
+//            randomAccessFile.close();
+            if(channel.read(buf, (long)pid.getPageNumber()*pageSize)==-1){
                 return null;
             }
             heapPage= new HeapPage((HeapPageId) pid, buf);
-            randomAccessFile.close();
-        } catch (FileNotFoundException e ) {
-            e.printStackTrace();
         } catch (IOException e){
             e.printStackTrace();
         }
@@ -105,10 +150,14 @@ public class HeapFile implements DbFile {
         int size = BufferPool.getPageSize();
         int pageNumber = heapPageId.getPageNumber();
         byte[] pageData = page.getPageData();
-        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-        randomAccessFile.seek(pageNumber* size);
-        randomAccessFile.write(pageData);
-        randomAccessFile.close();
+//        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+//        randomAccessFile.seek(pageNumber* size);
+//        randomAccessFile.write(pageData);
+//        randomAccessFile.close();
+        channel.write(pageData, (long)pageNumber * size);
+        if (page instanceof HeapPage) {
+            freeSpaceMap.setFull(pageNumber, ((HeapPage) page).getNumEmptySlots() == 0);
+        }
     }
 
     /**
@@ -116,7 +165,13 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int)file.length() / BufferPool.getPageSize();
+//        return (int)file.length() / BufferPool.getPageSize();
+        // 用已经打开的channel取文件大小，不需要按路径去stat文件
+        try {
+            return (int)(channel.length() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -129,7 +184,10 @@ public class HeapFile implements DbFile {
             throw new IOException();
         }
         List<Page> res = new ArrayList<>();
-        for(int i=0;i<numPages();i++){
+        int numPages = numPages();
+//        for(int i=0;i<numPages;i++){
+        // 借助free space map跳过已经满的页，不再对每一页加写锁读进来
+        for(int i=freeSpaceMap.nextCandidate(0, numPages);i>=0;i=freeSpaceMap.nextCandidate(i+1, numPages)){
 //            HeapPageId heapPageId = new HeapPageId(getId(),i);
 //            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
 //            if(heapPage==null){
@@ -154,11 +212,13 @@ public class HeapFile implements DbFile {
 //                continue;
                 }
                 if(heapPage.getNumEmptySlots()==0){
+                    freeSpaceMap.setFull(i, true);
                     Database.getBufferPool().unsafeReleasePage(tid,heapPageId);
                     continue;
                 }
                 heapPage.insertTuple(t);
                 heapPage.markDirty(true,tid);
+                freeSpaceMap.setFull(i, heapPage.getNumEmptySlots()==0);
                 res.add(heapPage);
                 return res;
             } catch (TransactionAbortedException e) {
@@ -179,11 +239,20 @@ public class HeapFile implements DbFile {
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
         page.insertTuple(t);
         page.markDirty(true, tid);
+        freeSpaceMap.setFull(heapPageId.getPageNumber(), page.getNumEmptySlots()==0);
         res.add(page);
         return res;
         // not necessary for lab1
     }
 
+    /**
+     * Bring the free space map up to date with page, whose contents were just
+     * restored by the BufferPool when the transaction that changed it aborted.
+     */
+    public void pageRestored(HeapPage page) throws IOException {
+        freeSpaceMap.setFull(page.getId().getPageNumber(), page.getNumEmptySlots() == 0);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -195,6 +264,11 @@ public class HeapFile implements DbFile {
             throw new DbException("null");
         }
         heapPage.deleteTuple(t);
+        try {
+            freeSpaceMap.setFull(heapPageId.getPageNumber(), false);
+        } catch (IOException e) {
+            throw new DbException("could not update free space map: " + e);
+        }
         res.add(heapPage);
         return res;
         // not necessary for lab1
@@ -206,6 +280,19 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid, Permissions.READ_ONLY);
     }
 
+    /**
+     * Returns an iterator over the tuples of this file that satisfy p. The
+     * predicate is checked against the raw page data before a tuple is
+     * decoded, so rejected tuples are never materialized.
+     *
+     * @see HeapPage#iterator(Predicate)
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p) {
+        HeapFileIterator it = new HeapFileIterator(tid, Permissions.READ_ONLY);
+        it.predicate = p;
+        return it;
+    }
+
     /**
      * 这个迭代器的作用是用来遍历所有的tuple，但是不要将所有tuple一次性放入内存，而是一页一页的读和遍历
      */
@@ -214,7 +301,16 @@ public class HeapFile implements DbFile {
         Permissions permissions;
         BufferPool bufferPool = Database.getBufferPool();
         Iterator<Tuple> iterator;
+        // 下推到页上的过滤条件，可以为null
+        Predicate predicate;
         int num = 0;
+        // open时取一次页数，遍历过程中不再每页都去问文件大小
+        int numPages;
+        // 顺序读到第N+1页时，在后台预读后面的页
+        final SequentialPrefetcher prefetcher = new SequentialPrefetcher(page -> {
+            int next = page.getId().getPageNumber() + 1;
+            return next < numPages ? new HeapPageId(getId(), next) : null;
+        });
 
         public HeapFileIterator(TransactionId tid,Permissions permissions){
             this.tid = tid;
@@ -229,12 +325,14 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             num = 0;
+            numPages = numPages();
+            prefetcher.reset();
             HeapPageId heapPageId = new HeapPageId(getId(), num);
             HeapPage page = (HeapPage)this.bufferPool.getPage(tid, heapPageId, permissions);
             if(page == null){
                 throw new DbException("page null");
             }else{
-                iterator = page.iterator();
+                iterator = page.iterator(predicate);
             }
         }
 
@@ -247,12 +345,13 @@ public class HeapFile implements DbFile {
         public boolean nextPage() throws DbException, TransactionAbortedException {
             while (true) {
                 num++;
-                if(num >= numPages()) return false;
+                if(num >= numPages) return false;
                 HeapPageId heapPageId = new HeapPageId(getId(), num);
                 HeapPage page = (HeapPage)bufferPool.getPage(tid,heapPageId,permissions);
 //                if(page == null) continue;
                 if(page == null) throw new DbException("page null");
-                iterator = page.iterator();
+                prefetcher.advanced(page);
+                iterator = page.iterator(predicate);
                 if(iterator.hasNext()) return true;
             }
         }
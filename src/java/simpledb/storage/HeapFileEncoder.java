@@ -108,6 +108,8 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    // 文件被整个重写了，旧的free space map已经没有意义
+    FreeSpaceMap.discard(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char[] buf = new char[1024];
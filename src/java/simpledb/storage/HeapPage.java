@@ -4,10 +4,12 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -22,13 +24,20 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;// 头信息
-    final Tuple[] tuples;// 所有tuple数据
+    final Tuple[] tuples;// 已经解码或者插入的tuple，null表示还没有解码
     final int numSlots;
+    // 从磁盘读出来的原始字节，tuple在第一次被访问时才从这里解码；
+    // 内存映射读进来的页是映射区域的只读视图，没有复制
+    private final ByteBuffer data;
+    // 每个字段在tuple内的偏移量
+    private final int[] fieldOffsets;
 
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
     private Boolean dirty;
     private TransactionId transactionId;
+    // 最后一条修改这一页的日志记录的LSN，只在内存里
+    private volatile long lsn = -1;
 
     /**
      *  HeapFile会读取该页的流传入，通过该流，可以获取该页的
@@ -48,32 +57,85 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * Only the header is read here. The page keeps a reference to data and
+     * decodes a tuple the first time it is accessed, so data must not be
+     * modified afterwards.
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.dirty = false;
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.fieldOffsets = computeFieldOffsets(td);
 
-        // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        if (data.length < BufferPool.getPageSize()) {
+            if (data.length < header.length) {
+                throw new EOFException("page is shorter than its header");
+            }
+            data = Arrays.copyOf(data, BufferPool.getPageSize());
         }
-        dis.close();
+        this.data = ByteBuffer.wrap(data);
+        System.arraycopy(data, 0, header, 0, header.length);
 
         setBeforeImage();
     }
 
+    /**
+     * Create a HeapPage from the remaining bytes of a buffer, typically a
+     * read-only view of a memory mapped region of the HeapFile. Only the
+     * header is copied; tuples are lazily decoded straight from the buffer,
+     * which must not change until the page is first marked dirty. The bytes
+     * are copied into the before image only when it is first needed, at
+     * the first markDirty or getBeforeImage, because the mapped bytes
+     * change once the page is written back.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     * @see HeapFile#setMemoryMapped(boolean)
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this.dirty = false;
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        this.fieldOffsets = computeFieldOffsets(td);
+
+        header = new byte[getHeaderSize()];
+        tuples = new Tuple[numSlots];
+        if (data.remaining() < header.length) {
+            throw new EOFException("page is shorter than its header");
+        }
+        if (data.remaining() < BufferPool.getPageSize()) {
+            // 不足一页的话补齐成一页再解码，和byte[]的构造函数一样
+            byte[] padded = new byte[BufferPool.getPageSize()];
+            data.duplicate().get(padded, 0, data.remaining());
+            this.data = ByteBuffer.wrap(padded);
+        } else {
+            this.data = data.slice();
+        }
+        // 前像等到第一次需要时才从data复制，见beforeImageData
+        this.data.duplicate().get(header);
+    }
+
+    private static int[] computeFieldOffsets(TupleDesc td) {
+        int[] offsets = new int[td.numFields()];
+        int offset = 0;
+        for (int j=0; j<offsets.length; j++) {
+            offsets[j] = offset;
+            offset += td.getFieldType(j).getLen();
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the offset of slot i in the page data
+     */
+    private int slotOffset(int i) {
+        return header.length + i * td.getSize();
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -97,12 +159,13 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
+//            byte[] oldDataRef = null;
+//            synchronized(oldDataLock)
+//            {
+//                oldDataRef = oldData;
+//            }
+//            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,beforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -111,13 +174,40 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * Returns the bytes of the before image, copying them from the page
+     * data the first time they are needed by a memory mapped page.
+     */
+    private byte[] beforeImageData() {
+        byte[] oldDataRef = null;
+        synchronized(oldDataLock)
+        {
+            // 映射读进来的页没有修改过的话，data就是磁盘上的字节，也就是前像
+            if (oldData == null) {
+                oldData = new byte[BufferPool.getPageSize()];
+                data.duplicate().get(oldData);
+            }
+            oldDataRef = oldData;
+        }
+        return oldDataRef;
+    }
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // getPageData每次都返回新数组，不需要再clone
+        oldData = getPageData();
         }
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -128,36 +218,61 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in slot i, decoding it from the page data the first
+     * time it is asked for.
+     *
+     * @return the tuple in slot i, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    public Tuple getTuple(int i) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        Tuple t = tuples[i];
+        if (t != null) {
+            return t;
+        }
+        // 共享锁下可能有多个线程同时解码同一个slot，加锁保证只解码一次，并安全发布
+        synchronized (tuples) {
+            t = tuples[i];
+            if (t == null) {
+                t = readTuple(data.duplicate(), i);
+                tuples[i] = t;
             }
+            return t;
+        }
+    }
+
+    /**
+     * Returns field j of the tuple in slot i. If the tuple has not been
+     * decoded yet only that one field is read, at its fixed offset in the
+     * page, and no Tuple is created.
+     *
+     * @return the field, or null if the slot is empty
+     */
+    public Field getField(int i, int j) {
+        if (!isSlotUsed(i)) {
             return null;
         }
+        Tuple t = tuples[i];
+        if (t != null) {
+            return t.getField(j);
+        }
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(i) + fieldOffsets[j]);
+        return td.getFieldType(j).parse(buf);
+    }
 
-        // read fields in the tuple
+    /**
+     * Decode the tuple in slot slotId from its offset in buf.
+     */
+    private Tuple readTuple(ByteBuffer buf, int slotId) {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        buf.position(slotOffset(slotId));
+        for (int j=0; j<td.numFields(); j++) {
+            t.setField(j, td.getFieldType(j).parse(buf));
         }
-
         return t;
     }
 
@@ -173,64 +288,35 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        // 新数组本身就全是0，空的slot和末尾的padding不用再写
+        byte[] data = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = ByteBuffer.wrap(data);
 
         // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        buf.put(header);
 
         // create the tuples
+        int tupleSize = td.getSize();
         for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
                 continue;
             }
-
-            // non-empty slot
+            Tuple t = tuples[i];
+            if (t == null) {
+                // 没有解码过的tuple不可能被修改，直接复制原始字节
+//                System.arraycopy(this.data, slotOffset(i), data, slotOffset(i), tupleSize);
+                ByteBuffer src = this.data.duplicate();
+                src.position(slotOffset(i));
+                src.get(data, slotOffset(i), tupleSize);
+                continue;
+            }
+            buf.position(slotOffset(i));
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                t.getField(j).serialize(buf);
             }
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -266,7 +352,7 @@ public class HeapPage implements Page {
 //        tuples[tupleNumber] = null;
 //        markSlotUsed(tupleNumber, false);
         int tupleNumber = t.getRecordId().getTupleNumber();
-        if(isSlotUsed(tupleNumber) && tuples[tupleNumber].equals(t)){
+        if(isSlotUsed(tupleNumber) && getTuple(tupleNumber).equals(t)){
             tuples[tupleNumber] = null;
             markSlotUsed(tupleNumber,false);
             return;
@@ -291,7 +377,6 @@ public class HeapPage implements Page {
             throw new DbException("tupleDesc is mismatch");
         }
         for(int i = 0; i < numSlots; i++) {
-            if(tuples[i] != null) continue;
             if(!isSlotUsed(i)) {
                 tuples[i] = t;
                 // 设置tuple在Page中的物理记录
@@ -309,6 +394,10 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	    // not necessary for lab1
+        // 内存映射的页在修改写回之前先留下前像，写回以后映射的字节就变了
+        if (dirty) {
+            beforeImageData();
+        }
         this.dirty = dirty;
         this.transactionId = tid;
     }
@@ -367,14 +456,61 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tuples = new ArrayList<>();
-        for(int i=0;i<numSlots;i++){
-            if(isSlotUsed(i)){
-                tuples.add(this.tuples[i]);
+//        List<Tuple> tuples = new ArrayList<>();
+//        for(int i=0;i<numSlots;i++){
+//            if(isSlotUsed(i)){
+//                tuples.add(this.tuples[i]);
+//            }
+//        }
+//        return tuples.iterator();
+        return iterator(null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy p. The
+     * predicate is evaluated on the single field it refers to before the
+     * tuple is decoded, so tuples it rejects are never materialized.
+     *
+     * @param p the predicate to apply, or null to return every tuple
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
+        // 创建迭代器时记下哪些slot在用，遍历过程中新插入的tuple不会被遍历到
+        int[] slots = new int[numSlots - getNumEmptySlots()];
+        int n = 0;
+        for (int i=0; i<numSlots; i++) {
+            if (isSlotUsed(i)) {
+                slots[n++] = i;
             }
         }
-        return tuples.iterator();
+        return new Iterator<Tuple>() {
+            int pos = 0;
+            Tuple next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && pos < slots.length) {
+                    int slot = slots[pos++];
+                    if (!isSlotUsed(slot)) {
+                        continue;
+                    }
+                    if (p != null && !getField(slot, p.getField()).compare(p.getOp(), p.getOperand())) {
+                        continue;
+                    }
+                    next = getTuple(slot);
+                }
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+        };
     }
 
 }
-
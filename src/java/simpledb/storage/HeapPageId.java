@@ -43,7 +43,9 @@ public class HeapPageId implements PageId {
     public int hashCode() {
         // some code goes here
 //        throw new UnsupportedOperationException("implement this");
-        return (this.tableId+"").hashCode() + (this.pageNum+"").hashCode();
+//        return (this.tableId+"").hashCode() + (this.pageNum+"").hashCode();
+        // 不再拼接字符串：这个方法在BufferPool的每次查找中都会被调用
+        return 31 * this.tableId + this.pageNum;
     }
 
     /**
@@ -0,0 +1,48 @@
+package simpledb.storage;
+
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Exact LRU. Pages are kept in an access ordered LinkedHashMap, so every hit
+ * relinks the list under the policy monitor; victims are chosen from the
+ * least recently used end.
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    // accessOrder=true：get会把节点移到链表尾部，头部就是最久未使用的页
+    private final LinkedHashMap<PageId, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+    private final EvictionStats stats = new EvictionStats();
+
+    public synchronized void pageHit(PageId pid) {
+        order.get(pid);
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        order.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        int scanned = 0;
+        try {
+            for (PageId pid : order.keySet()) {
+                scanned++;
+                if (evictable.test(pid)) {
+                    return pid;
+                }
+                stats.recordDirtySkip();
+            }
+            return null;
+        } finally {
+            stats.recordScan(scanned);
+        }
+    }
+
+    public EvictionStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,124 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K (O'Neil et al.). The victim is the page whose K-th most recent
+ * reference is the oldest, so a page touched once by a scan is evicted
+ * before a page that has been referenced K times, however recently the scan
+ * touched it. Pages with fewer than K references have an infinite backward
+ * K-distance and are evicted first, in LRU order among themselves.
+ * <p>
+ * The reference history of an evicted page is retained for a while, so a
+ * page that comes back soon keeps its earlier references.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        // 最近K次访问的逻辑时间，times[0]是最近一次
+        final long[] times;
+        int count;
+
+        History(int k) {
+            times = new long[k];
+        }
+
+        void reference(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+            if (count < times.length) count++;
+        }
+
+        long last() {
+            return times[0];
+        }
+
+        /** K-th most recent reference, or -1 if there are fewer than K. */
+        long kth() {
+            return count < times.length ? -1 : times[times.length - 1];
+        }
+    }
+
+    private final int k;
+    private final int capacity;
+    private long clock;
+    private final Map<PageId, History> resident = new HashMap<>();
+    // 被淘汰页的访问历史，最多保留capacity个
+    private final LinkedHashMap<PageId, History> retained = new LinkedHashMap<>();
+    private final EvictionStats stats = new EvictionStats();
+
+    public LRUKEvictionPolicy(int capacity) {
+        this(capacity, DEFAULT_K);
+    }
+
+    public LRUKEvictionPolicy(int capacity, int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be at least 1");
+        this.capacity = capacity;
+        this.k = k;
+    }
+
+    public synchronized void pageHit(PageId pid) {
+        History h = resident.get(pid);
+        if (h != null) {
+            h.reference(++clock);
+        }
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        History h = retained.remove(pid);
+        if (h == null) {
+            h = new History(k);
+        }
+        h.reference(++clock);
+        resident.put(pid, h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h == null) return;
+        retained.put(pid, h);
+        if (retained.size() > capacity) {
+            Iterator<PageId> it = retained.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * 线性扫描所有驻留页，选K距离最大的页（第K次访问最早）；
+     * 访问不足K次的页K距离为无穷大，它们之间按最近一次访问的LRU顺序选
+     */
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        int scanned = 0;
+        for (Map.Entry<PageId, History> e : resident.entrySet()) {
+            scanned++;
+            History h = e.getValue();
+            long kth = h.kth();
+            if (kth > victimKth || (kth == victimKth && h.last() >= victimLast)) {
+                continue;
+            }
+            if (!evictable.test(e.getKey())) {
+                stats.recordDirtySkip();
+                continue;
+            }
+            victim = e.getKey();
+            victimKth = kth;
+            victimLast = h.last();
+        }
+        stats.recordScan(scanned);
+        return victim;
+    }
+
+    public EvictionStats getStats() {
+        return stats;
+    }
+}
@@ -6,8 +6,12 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -43,40 +47,78 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> Every log record has a log sequence number (LSN), the number of
+bytes appended to the log before it.  LSNs only grow: truncating the log
+drops the records at its head but does not renumber the others.
+
+<li> The log file itself holds only a header of three long integers:
+the LSN of the last written checkpoint record, or -1 if there are no
+checkpoints, the LSN of the first record still kept, and the segment
+size.  The records are stored in segment files next to it, named after
+the log file and the segment number: the record with LSN l starts in
+segment l / segment size, at offset l % segment size, and may continue
+into the next segment.  Truncating the log deletes the segments that
+lie entirely before the first record still needed.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
-
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
-
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each log record begins with an integer payload length, a byte
+type, a long integer transaction id and the LSN of the transaction's
+previous record (-1 for its first), and ends with an integer CRC32 of
+everything before it.  A record that is cut short or fails its CRC
+marks the end of the log, as left by a crash in the middle of a write.
+
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and CLR
+
+<li> ABORT, COMMIT, and BEGIN records contain no additional data.  An
+ABORT record is written once the transaction has been rolled back.
+
+<li>UPDATE RECORDS describe the change to one page as the byte ranges
+that differ between its before image and its after image.  The payload
+is the page, identified by the numeric code its class was registered
+with (see registerPageType) and its serialized id, the page size, and
+the number of ranges, followed by an integer offset, an integer length,
+the old bytes and the new bytes of each range.  Redoing the record
+copies the new bytes into the page, undoing it copies the old ones back.
+See LogFile.writePageDelta() and LogFile.readPageDelta().
+
+<li> CLR (compensation) records are written while an UPDATE is undone.
+They hold the LSN of the next record of the transaction left to undo,
+followed by the change the undo made, in the format of an UPDATE.  They
+are redone but never undone, so a rollback interrupted by a crash picks
+up where it stopped.
+
+<li> CHECKPOINT records are fuzzy: pages are not written when the
+checkpoint is taken.  They consist of the LSN the checkpoint began at,
+from which analysis scans the log, followed by the transaction table and
+the dirty page table at the time the checkpoint was taken: an integer count of
+the active transactions, then a long integer transaction id, first
+record LSN and last record LSN for each; an integer count of the dirty
+pages, then for each the page type code, the serialized page id and the
+LSN of the first record that dirtied it since it was last written.
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
-
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+</ul>
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<p> Records are appended to an in-memory buffer that is written to the
+file when it fills up or when the log is forced.  Before a page is written
+to disk, the log must be forced up to the page's LSN (see forceTo).
 
-</ul>
+<p> Recovery follows ARIES: an analysis pass rebuilds the transaction and
+dirty page tables from the last checkpoint, a redo pass repeats history
+from the oldest dirty page, and an undo pass rolls back the transactions
+that neither committed nor aborted, writing CLRs.  Commits therefore do
+not have to write pages (NO-FORCE), and uncommitted pages may be written
+before their transaction ends (STEAL).
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    // 日志文件本身只存文件头
+    private final FileChannel headerChannel;
+    // 日志段：段号 -> channel，用到时才打开。截断日志时删除整段，不再复制剩下的记录
+    private final ConcurrentSkipListMap<Long, FileChannel> segments = new ConcurrentSkipListMap<>();
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,22 +126,203 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    /** Size of the file header: the checkpoint LSN, the LSN of the first record kept and the segment size. */
+    static final int HEADER_SIZE = 3 * LONG_SIZE;
+    /** Default size of a log segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    /** Bytes of a record before its payload: length, type, transaction id and previous LSN. */
+    static final int RECORD_HEADER_SIZE = INT_SIZE + 1 + LONG_SIZE + LONG_SIZE;
+    /** Bytes of a record after its payload: the CRC. */
+    static final int RECORD_TRAILER_SIZE = INT_SIZE;
+    /** Size of the in-memory log buffer. */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+    /** Changed byte ranges closer than this are logged as one range. */
+    static final int MERGE_GAP = 4;
+
+    // 保留的第一条记录的LSN，截断日志时变大
+    long baseLsn = 0; //protected by this
+    // 每个段文件的字节数，写在文件头里；只在日志重新开始或打开已有日志时改
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+    // 下一条记录的LSN，也就是日志的末尾。只在this的锁下修改；volatile是为了force()不加this的锁也能读
+    volatile long nextLsn = 0;
+    // 缓冲区里是LSN在[bufferStartLsn, nextLsn)之间、还没写进文件的记录
+    private long bufferStartLsn = 0; //protected by this
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE); //protected by this
+    // 拼一条记录用的缓冲区，放不下时换一个更大的
+    private ByteBuffer scratch = ByteBuffer.allocate(LOG_BUFFER_SIZE); //protected by this
+    private final CRC32 crc = new CRC32(); //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     /**
-     * key是活跃事务tid，value就是当前事务的第一条record offset
-     * 开始BEGIN日志的时候会往map里put一个tid和对应的offset进去
+     * key是活跃事务tid，value就是当前事务的第一条record的LSN
+     * 开始BEGIN日志的时候会往map里put一个tid和对应的LSN进去
      * 在事务完成(COMMIT或ABORT)以后会删除这个map里对应的tid的记录
-     * 所以这个map里实际上保存的是正在进行的事务的BeginOffset
+     * 所以这个map里实际上保存的是正在进行的事务的BEGIN记录的LSN
      * */
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    // 活跃事务的最后一条record的LSN，新记录的prevLsn指向它，回滚从它开始往前走
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+    // 正在拼的记录属于哪个事务，appendRecord用来更新tidToLastLogRecord
+    private long scratchTid; //protected by this
+
+    // 活跃事务写过的UPDATE日志字节数，死锁时按写日志最少选牺牲者用；不需要持有LogFile的锁就能读
+    final Map<Long,Long> tidToLogBytes = new ConcurrentHashMap<>();
+
+    // 组提交：同一时刻只有一个线程fsync，它把在它之前写完的日志一起刷盘，
+    // 在它刷盘期间排队的提交者醒来后发现自己的日志已经落盘就直接返回。
+    // 锁顺序是this -> syncLock，持有syncLock时不能再去拿this
+    private final Object syncLock = new Object();
+    private long durableLsn = 0; // LSN小于它的记录都已经落盘 // protected by syncLock
+    private long forceCount = 0; // protected by syncLock
+
+    /** Creates the id of a page of a registered type from the ints it was serialized to. */
+    public interface PageIdFactory {
+        PageId create(int[] id);
+    }
+
+    /** Creates a page of a registered type from its id and its data. */
+    public interface PageFactory {
+        Page create(PageId id, byte[] data) throws IOException;
+    }
+
+    // UPDATE记录里用编号代替页的类名：编号 -> 创建页id和页的工厂，页的类 -> 编号
+    private static final Map<Integer, PageIdFactory> pageIdFactories = new ConcurrentHashMap<>();
+    private static final Map<Integer, PageFactory> pageFactories = new ConcurrentHashMap<>();
+    private static final Map<Class<? extends Page>, Integer> pageCodes = new ConcurrentHashMap<>();
+    // 页id的类 -> 写过日志的某个页类型编号，检查点里的脏页表只有页id，用它找到重建页id的工厂
+    private static final Map<Class<? extends PageId>, Integer> pageIdCodes = new ConcurrentHashMap<>();
+
+    static {
+        registerPageType(1, HeapPage.class, id -> new HeapPageId(id[0], id[1]),
+                (id, data) -> new HeapPage((HeapPageId) id, data));
+    }
+
+    /**
+     * Register a page class whose before and after images may be logged.
+     * The code, between 1 and 127, is written to the log in place of the
+     * class name; every class needs its own code.
+     *
+     * @param code the code stored in UPDATE records for pages of this class
+     * @param pageClass the page class
+     * @param ids rebuilds the id of a page of this class when the log is read
+     * @param pages rebuilds a page of this class from the bytes recovery produced
+     */
+    public static synchronized void registerPageType(int code, Class<? extends Page> pageClass,
+                                                     PageIdFactory ids, PageFactory pages) {
+        if (code < 1 || code > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("page type code out of range: " + code);
+        }
+        if (pageFactories.containsKey(code) && !Integer.valueOf(code).equals(pageCodes.get(pageClass))) {
+            throw new IllegalArgumentException("page type code " + code + " is already registered");
+        }
+        pageCodes.put(pageClass, code);
+        pageIdFactories.put(code, ids);
+        pageFactories.put(code, pages);
+    }
+
+    /** The byte ranges of one page that an UPDATE record changed, with their old and new contents. */
+    private static class PageDelta {
+        final int code;
+        final PageId pid;
+        final int pageSize;
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        PageDelta(int code, PageId pid, int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+            this.code = code;
+            this.pid = pid;
+            this.pageSize = pageSize;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
+
+        /** The change undoing this one makes, as logged in a CLR. */
+        PageDelta inverse() {
+            return new PageDelta(code, pid, pageSize, offsets, after, before);
+        }
+
+        void redo(byte[] page) {
+            for (int i = 0; i < offsets.length; i++) {
+                System.arraycopy(after[i], 0, page, offsets[i], after[i].length);
+            }
+        }
+
+        void undo(byte[] page) {
+            for (int i = offsets.length - 1; i >= 0; i--) {
+                System.arraycopy(before[i], 0, page, offsets[i], before[i].length);
+            }
+        }
+    }
+
+    /**
+     * The images of the pages that recovery or rollback is changing. A page
+     * is read from its DbFile the first time a record touches it, and all of
+     * them are written back by install().
+     */
+    private static class PageImages {
+        private final Map<PageId, byte[]> images = new LinkedHashMap<>();
+        private final Map<PageId, Integer> codes = new HashMap<>();
+
+        byte[] get(PageDelta d) {
+            byte[] image = images.get(d.pid);
+            if (image == null) {
+                Page page = Database.getCatalog().getDatabaseFile(d.pid.getTableId()).readPage(d.pid);
+                // 文件里还没有这一页：空页全是0
+                image = page == null ? new byte[d.pageSize] : page.getPageData();
+                images.put(d.pid, image);
+                codes.put(d.pid, d.code);
+            }
+            return image;
+        }
+
+        /** Write every page back to its file, and return their ids. */
+        Set<PageId> install() throws IOException {
+            for (Map.Entry<PageId, byte[]> e : images.entrySet()) {
+                PageId pid = e.getKey();
+                Page page = pageFactories.get(codes.get(pid)).create(pid, e.getValue());
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            }
+            return images.keySet();
+        }
+    }
+
+    /** The tables a checkpoint record holds. */
+    private static class Checkpoint {
+        // 检查点开始时日志的末尾，分析从这里开始扫描
+        long beginLsn;
+        // tid -> {第一条record的LSN, 最后一条record的LSN}
+        final Map<Long, long[]> transactions = new HashMap<>();
+        // 脏页 -> recLSN
+        final Map<PageId, Long> dirtyPages = new HashMap<>();
+    }
+
+    /** A record read back from the log file. */
+    private static class LogRecord {
+        final long lsn;
+        final int type;
+        final long tid;
+        final long prevLsn;
+        final ByteBuffer payload;
+        final long nextLsn;
+
+        LogRecord(long lsn, int type, long tid, long prevLsn, ByteBuffer payload, long nextLsn) {
+            this.lsn = lsn;
+            this.type = type;
+            this.tid = tid;
+            this.prevLsn = prevLsn;
+            this.payload = payload;
+            this.nextLsn = nextLsn;
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -114,7 +337,7 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        headerChannel = new RandomAccessFile(f, "rw").getChannel();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -135,18 +358,297 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startEmpty();
+        }
+    }
+
+    /** Throw away the whole log, segments included, and start an empty one. */
+    private void startEmpty() throws IOException {
+        for (long index : existingSegments()) {
+            dropSegment(index);
+        }
+        headerChannel.truncate(0);
+        writeHeader(NO_CHECKPOINT_ID, 0);
+        startAt(0, 0);
+    }
+
+    /** 日志从base开始、到end结束，之后的记录从end开始追加 */
+    private void startAt(long base, long end) {
+        baseLsn = base;
+        nextLsn = end;
+        bufferStartLsn = end;
+        logBuffer.clear();
+        synchronized (syncLock) {
+            durableLsn = end;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /**
+     * Returns the number of bytes of update records tid has written to the
+     * log so far, or 0 once tid has committed or aborted. Does not take the
+     * log's lock.
+     */
+    public long getLogBytes(TransactionId tid) {
+        return tidToLogBytes.getOrDefault(tid.getId(), 0L);
+    }
+
+    /**
+     * Set the size of the segment files of a log started from now on (the
+     * log is started by the first append when there was no recovery). An
+     * existing log keeps the segment size in its header.
+     */
+    public synchronized void setSegmentSize(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("segment size must be positive: " + bytes);
+        }
+        segmentSize = bytes;
+    }
+
+    /** Returns the size of the segment files of this log. */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Returns the LSN the next record will get, that is the end of the log. */
+    long endLsn() {
+        return nextLsn;
+    }
+
+    private void writeHeader(long checkpointLsn, long firstLsn) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(checkpointLsn);
+        header.putLong(firstLsn);
+        header.putLong(segmentSize);
+        header.flip();
+        writeFully(headerChannel, header, 0);
+    }
+
+    /** Read one of the longs of the file header. */
+    private long readHeader(int offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LONG_SIZE);
+        while (buf.hasRemaining()) {
+            if (headerChannel.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("log file " + logFile + " has no header");
+            }
+        }
+        return buf.getLong(0);
+    }
+
+    private File segmentFile(long index) {
+        return new File(logFile.getPath() + String.format(".%010d", index));
+    }
+
+    /** Returns the numbers of the segment files of this log on disk, in order. */
+    private SortedSet<Long> existingSegments() {
+        SortedSet<Long> indexes = new TreeSet<>();
+        File dir = logFile.getAbsoluteFile().getParentFile();
+        String prefix = logFile.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) {
+            return indexes;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()
+                    && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                indexes.add(Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the channel of the given segment, opening it if needed. A
+     * missing segment is created if create is set, otherwise null is
+     * returned.
+     */
+    private FileChannel segment(long index, boolean create) throws IOException {
+        FileChannel ch = segments.get(index);
+        if (ch == null) {
+            File f = segmentFile(index);
+            if (!create && !f.exists()) {
+                return null;
+            }
+            ch = new RandomAccessFile(f, "rw").getChannel();
+            FileChannel opened = segments.putIfAbsent(index, ch);
+            if (opened != null) {
+                ch.close();
+                ch = opened;
+            }
+        }
+        return ch;
+    }
+
+    /** Close and delete a segment file. */
+    private void dropSegment(long index) throws IOException {
+        FileChannel ch = segments.remove(index);
+        if (ch != null) {
+            ch.close();
+        }
+        File f = segmentFile(index);
+        if (f.exists() && !f.delete()) {
+            throw new IOException("could not delete log segment " + f);
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+    }
+
+    /** Write buf to the segments starting at the given LSN, creating segments as needed. */
+    private void writeAt(ByteBuffer buf, long lsn) throws IOException {
+        while (buf.hasRemaining()) {
+            long offset = lsn % segmentSize;
+            // 写到段尾为止，剩下的写进下一段
+            int n = (int) Math.min(buf.remaining(), segmentSize - offset);
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + n);
+            writeFully(segment(lsn / segmentSize, true), part, offset);
+            buf.position(buf.position() + n);
+            lsn += n;
+        }
+    }
+
+    /** Fill buf from the segments starting at the given LSN and flip it; false if the log ends first. */
+    private boolean readAt(ByteBuffer buf, long lsn) throws IOException {
+        while (buf.hasRemaining()) {
+            FileChannel ch = segment(lsn / segmentSize, false);
+            if (ch == null) {
+                return false;
+            }
+            long offset = lsn % segmentSize;
+            int limit = buf.limit();
+            buf.limit((int) Math.min(limit, buf.position() + (segmentSize - offset)));
+            int n = ch.read(buf, offset);
+            buf.limit(limit);
+            if (n < 0) {
+                return false;
+            }
+            lsn += n;
+        }
+        buf.flip();
+        return true;
+    }
+
+    /** Returns how many bytes the segments on disk hold from the given LSN on. */
+    private long storedBytesFrom(long lsn) throws IOException {
+        long stored = 0;
+        for (long index = lsn / segmentSize; ; index++) {
+            FileChannel ch = segment(index, false);
+            if (ch == null) {
+                return stored;
+            }
+            long size = Math.min(ch.size(), segmentSize);
+            long from = index == lsn / segmentSize ? lsn % segmentSize : 0;
+            stored += Math.max(0, size - from);
+            if (size < segmentSize) {
+                return stored;
+            }
+        }
+    }
+
+    /**
+     * Start building a record in the scratch buffer and return the buffer,
+     * positioned for the payload.
+     *
+     * @param payloadSize an upper bound on the size of the payload
+     */
+    private ByteBuffer beginRecord(int type, long tid, int payloadSize) {
+        int size = RECORD_HEADER_SIZE + payloadSize + RECORD_TRAILER_SIZE;
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(size);
+        }
+        scratch.clear();
+        scratch.putInt(0); // 长度在appendRecord里填
+        scratch.put((byte) type);
+        scratch.putLong(tid);
+        scratch.putLong(tidToLastLogRecord.getOrDefault(tid, -1L));
+        scratchTid = tid;
+        return scratch;
+    }
+
+    /** Finish the record built in the scratch buffer, append it to the log and return its LSN. */
+    private long appendRecord() throws IOException {
+        int end = scratch.position();
+        scratch.putInt(0, end - RECORD_HEADER_SIZE);
+        ByteBuffer covered = scratch.duplicate();
+        covered.flip();
+        crc.reset();
+        crc.update(covered);
+        scratch.putInt((int) crc.getValue());
+        scratch.flip();
+
+        long lsn = nextLsn;
+        int size = scratch.remaining();
+        if (size > logBuffer.remaining()) {
+            flushBuffer();
+        }
+        if (size > logBuffer.capacity()) {
+            // 比整个缓冲区还大的记录直接写进文件，这时缓冲区是空的
+            writeAt(scratch, lsn);
+            bufferStartLsn = lsn + size;
+        } else {
+            logBuffer.put(scratch);
+        }
+        nextLsn = lsn + size;
+        if (scratchTid != -1) {
+            tidToLastLogRecord.put(scratchTid, lsn);
+        }
+        return lsn;
+    }
+
+    /** Write the log buffer to the file. Does not force the file to disk. */
+    private void flushBuffer() throws IOException {
+        if (logBuffer.position() == 0) {
+            return;
+        }
+        logBuffer.flip();
+        writeAt(logBuffer, bufferStartLsn);
+        logBuffer.clear();
+        bufferStartLsn = nextLsn;
+    }
+
+    /**
+     * Read the record with the given LSN from the file, or return null if
+     * there is no complete record there: the end of the log, or a record
+     * torn by a crash. The log buffer must have been flushed.
+     */
+    private LogRecord readRecord(long lsn) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        if (!readAt(header, lsn)) {
+            return null;
+        }
+        int length = header.getInt();
+        int type = header.get();
+        long tid = header.getLong();
+        long prevLsn = header.getLong();
+        // 被撕裂的记录长度可能是任意值，长记录先确认段里真有这么多字节再分配
+        if (length < 0 || (length > LOG_BUFFER_SIZE
+                && RECORD_HEADER_SIZE + length + RECORD_TRAILER_SIZE > storedBytesFrom(lsn))) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length + RECORD_TRAILER_SIZE);
+        if (!readAt(body, lsn + RECORD_HEADER_SIZE)) {
+            return null;
+        }
+        header.rewind();
+        crc.reset();
+        crc.update(header);
+        ByteBuffer payload = body.duplicate();
+        payload.limit(length);
+        crc.update(payload);
+        if ((int) crc.getValue() != body.getInt(length)) {
+            return null;
+        }
+        body.limit(length);
+        return new LogRecord(lsn, type, tid, prevLsn, body, lsn + RECORD_HEADER_SIZE + length + RECORD_TRAILER_SIZE);
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -167,132 +669,189 @@ public class LogFile {
                 // 如何知道该未提交的事务的脏页已经刷盘??
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                beginRecord(ABORT_RECORD, tid.getId(), 0);
+                forceTo(appendRecord());
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        The record is appended under the log's lock, but the caller
+        waits for it to become durable after releasing the lock, so
+        concurrent committers share one fsync (group commit).
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitLsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId(), 0);
+            commitLsn = appendRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            tidToLogBytes.remove(tid.getId());
+        }
+        forceTo(commitLsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
+        The record's LSN becomes the LSN of the after image.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see Page#getBeforeImage
+        @see Page#getLSN
     */
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, lsn = " + nextLsn);
         preAppend();
-        /* update record conists of
+        /* update record payload conists of
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           the page and the byte ranges in which the before and after
+           images differ (see writePageDelta)
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        if (beforeData.length != afterData.length) {
+            throw new IOException("before and after images of page " + after.getId() + " differ in size");
+        }
+        PageDelta delta = pageDelta(after, beforeData, afterData);
+        ByteBuffer buf = beginRecord(UPDATE_RECORD, tid.getId(), pageDeltaSize(delta));
+        writePageDelta(buf, delta);
+        long lsn = appendRecord();
+        after.setLSN(lsn);
+        // 没有BEGIN记录的事务（直接用TransactionId写页的）从第一条UPDATE开始算
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), lsn);
+        tidToLogBytes.merge(tid.getId(), nextLsn - lsn, Long::sum);
+
+        Debug.log("WRITE LSN = " + lsn);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /**
+     * Return the byte ranges, as {offset, length}, in which before and after
+     * differ. Ranges separated by fewer than MERGE_GAP equal bytes are
+     * merged, since logging the equal bytes twice is cheaper than the
+     * offset and length of another range.
+     */
+    static List<int[]> diff(byte[] before, byte[] after) {
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            int j = end;
+            while (j < before.length && j - end < MERGE_GAP) {
+                if (before[j] != after[j]) {
+                    end = j + 1;
+                }
+                j++;
+            }
+            ranges.add(new int[]{start, end - start});
+            i = j;
+        }
+        return ranges;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Build the delta from before to after of page p, whose class must be registered. */
+    private static PageDelta pageDelta(Page p, byte[] before, byte[] after) throws IOException {
+        Integer code = pageCodes.get(p.getClass());
+        if (code == null) {
+            throw new IOException("page class " + p.getClass().getName() + " is not registered with the log");
+        }
+        pageIdCodes.putIfAbsent(p.getId().getClass(), code);
+        List<int[]> ranges = diff(before, after);
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][];
+        byte[][] newBytes = new byte[ranges.size()][];
+        for (int i = 0; i < offsets.length; i++) {
+            int[] range = ranges.get(i);
+            offsets[i] = range[0];
+            oldBytes[i] = Arrays.copyOfRange(before, range[0], range[0] + range[1]);
+            newBytes[i] = Arrays.copyOfRange(after, range[0], range[0] + range[1]);
+        }
+        return new PageDelta(code, p.getId(), after.length, offsets, oldBytes, newBytes);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    private static int pageDeltaSize(PageDelta delta) {
+        int size = 2 + delta.pid.serialize().length * INT_SIZE + 2 * INT_SIZE;
+        for (byte[] range : delta.after) {
+            size += 2 * INT_SIZE + 2 * range.length;
+        }
+        return size;
+    }
 
-        raf.writeInt(pageInfo.length);
+    void writePageDelta(ByteBuffer buf, PageDelta delta) {
+        int[] pageInfo = delta.pid.serialize();
+
+        //page delta is:
+        // page type code
+        // number of id ints
+        // id ints
+        // page size
+        // number of ranges
+        // for each range: offset, length, old bytes, new bytes
+        buf.put((byte) delta.code);
+        buf.put((byte) pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            buf.putInt(j);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        buf.putInt(delta.pageSize);
+        buf.putInt(delta.offsets.length);
+        for (int i = 0; i < delta.offsets.length; i++) {
+            buf.putInt(delta.offsets[i]);
+            buf.putInt(delta.after[i].length);
+            buf.put(delta.before[i]);
+            buf.put(delta.after[i]);
+        }
+        //        Debug.log ("WROTE PAGE DELTA, CODE = " + delta.code + ", page = " + delta.pid + ", ranges = " + delta.offsets.length);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    private static PageId readPageId(ByteBuffer buf, int code) throws IOException {
+        PageIdFactory ids = pageIdFactories.get(code);
+        if (ids == null) {
+            throw new IOException("unknown page type code " + code + " in log");
+        }
+        int[] id = new int[buf.get()];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = buf.getInt();
         }
-        return newPage;
+        return ids.create(id);
+    }
 
+    PageDelta readPageDelta(ByteBuffer buf) throws IOException {
+        int code = buf.get();
+        PageId pid = readPageId(buf, code);
+        int pageSize = buf.getInt();
+        int numRanges = buf.getInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        for (int i = 0; i < numRanges; i++) {
+            offsets[i] = buf.getInt();
+            int length = buf.getInt();
+            before[i] = new byte[length];
+            buf.get(before[i]);
+            after[i] = new byte[length];
+            buf.get(after[i]);
+        }
+        return new PageDelta(code, pid, pageSize, offsets, before, after);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,149 +866,151 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId(), 0);
+        long lsn = appendRecord();
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Write a fuzzy checkpoint: no pages are written. The record holds the
+     * dirty page table, which tells recovery where redo has to start, and
+     * the transaction table. The buffer pool is locked only while its dirty
+     * page table is copied, and the log only while the record is appended.
+     * Afterwards the log segments recovery no longer needs are deleted.
+     */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+//        //make sure we have buffer pool lock before proceeding
+//        synchronized (Database.getBufferPool()) {
+//            synchronized (this) {
+//                preAppend();
+//                force();
+//                Database.getBufferPool().flushAllPages();
+//                ...
+//            }
+//        }
+        BufferPool pool = Database.getBufferPool();
+        Map<PageId, Long> dirtyPages;
+        long beginLsn;
+        // flushPages写UPDATE日志和登记recLSN都在缓冲池的锁下：beginLsn之前的修改都已经在
+        // 复制出来的脏页表里，之后的修改由分析阶段从beginLsn开始扫描补上
+        synchronized (pool) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                beginLsn = nextLsn;
             }
+            dirtyPages = pool.dirtyPageTable();
         }
 
-        logTruncate();
-    }
-
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        long cpLsn;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, lsn = " + nextLsn);
+            int size = LONG_SIZE + 2 * INT_SIZE + tidToFirstLogRecord.size() * 3 * LONG_SIZE;
+            for (PageId pid : dirtyPages.keySet()) {
+                size += 2 + pid.serialize().length * INT_SIZE + LONG_SIZE;
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+            ByteBuffer buf = beginRecord(CHECKPOINT_RECORD, -1, size); //no tid , but leave space for convenience
+            buf.putLong(beginLsn);
+            //write list of outstanding transactions
+            buf.putInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                buf.putLong(e.getKey());
+                //Debug.log("WRITING CHECKPOINT TRANSACTION LSN: " + e.getValue());
+                buf.putLong(e.getValue());
+                buf.putLong(tidToLastLogRecord.getOrDefault(e.getKey(), e.getValue()));
+            }
+            //and the dirty page table
+            buf.putInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                Integer code = pageIdCodes.get(e.getKey().getClass());
+                if (code == null) {
+                    throw new IOException("dirty page " + e.getKey() + " was never logged");
                 }
+                int[] pageInfo = e.getKey().serialize();
+                buf.put(code.byteValue());
+                buf.put((byte) pageInfo.length);
+                for (int j : pageInfo) {
+                    buf.putInt(j);
+                }
+                buf.putLong(e.getValue());
             }
+            cpLsn = appendRecord();
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
+        // 刷盘时不持有日志的锁，和提交共用fsync
+        forceTo(cpLsn);
+        synchronized (this) {
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            // 并发的检查点可能已经写了更新的位置
+            if (cpLsn > readHeader(0)) {
+                writeHeader(cpLsn, baseLsn);
+                headerChannel.force(false);
+            }
+            //Debug.log("CP LSN = " + cpLsn);
+        }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        logTruncate();
+    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+    private Checkpoint readCheckpoint(LogRecord record) throws IOException {
+        Checkpoint cp = new Checkpoint();
+        ByteBuffer buf = record.payload;
+        cp.beginLsn = buf.getLong();
+        int numTransactions = buf.getInt();
+        while (numTransactions-- > 0) {
+            long tid = buf.getLong();
+            cp.transactions.put(tid, new long[]{buf.getLong(), buf.getLong()});
+        }
+        int numDirty = buf.getInt();
+        while (numDirty-- > 0) {
+            PageId pid = readPageId(buf, buf.get());
+            cp.dirtyPages.put(pid, buf.getLong());
+        }
+        return cp;
+    }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption: the segments that lie entirely before the first
+        record recovery may still read are deleted. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        flushBuffer();
+        long cpLsn = readHeader(0);
+        if (cpLsn == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        LogRecord cp = readRecord(cpLsn);
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        // 分析从检查点开始的位置扫描，活跃事务回滚要用到它们的第一条记录，脏页的redo要从它的recLSN开始
+        Checkpoint tables = readCheckpoint(cp);
+        long minLogRecord = tables.beginLsn;
+        for (long[] lsns : tables.transactions.values()) {
+            minLogRecord = Math.min(minLogRecord, lsns[0]);
+        }
+        for (long recLsn : tables.dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, recLsn);
+        }
+        if (minLogRecord <= baseLsn) {
+            return;
+        }
 
-            } catch (EOFException e) {
-                break;
+        // 先把新的起点写进文件头，再删掉整段都在它之前的段；LSN不变，剩下的记录不用动
+        writeHeader(cpLsn, minLogRecord);
+        headerChannel.force(false);
+        baseLsn = minLogRecord;
+        for (long index : existingSegments()) {
+            if ((index + 1) * segmentSize <= minLogRecord) {
+                Debug.log("TRUNCATING LOG; DELETING SEGMENT " + index + " ; NEW START : " + minLogRecord);
+                dropSegment(index);
             }
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
         //print();
     }
 
@@ -507,42 +1068,59 @@ public class LogFile {
             synchronized (this) {
                 preAppend();
                 // some code goes here
-                raf.seek(tidToFirstLogRecord.get(tid.getId()));
-                Set<PageId> rollbackPage = new HashSet<>();
-                while (true){
-                    try {
-                        int curType = raf.readInt();
-                        long curTid = raf.readLong();
-                        // 每次回滚对应页只能回滚上一次版本，因此一个页中的多次修改记录也只能rollback一次
-                        switch (curType){
-                            // 除了update其他全都略过
-                            case CHECKPOINT_RECORD:
-                                int keySize = raf.readInt();
-                                while (keySize-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                break;
-                            case UPDATE_RECORD:
-                                Page beforeImg = readPageData(raf);
-                                Page afterImg = readPageData(raf);
-                                if(curTid == tid.getId() && !rollbackPage.contains(beforeImg.getId())){
-                                    rollbackPage.add(beforeImg.getId());
-                                    DbFile file = Database.getCatalog().getDatabaseFile(beforeImg.getId().getTableId());
-                                    file.writePage(beforeImg);
-                                    Database.getBufferPool().discardPage(afterImg.getId());
-                                }
-
-                        }
-                        // 略过offset
-                        raf.readLong();
-                    }catch (EOFException e){
-                        break;
-                    }
-
+                flushBuffer();
+                // 写过日志的页在磁盘上是这个事务最后一次刷盘的内容，沿着prevLsn从后往前撤销
+                PageImages pages = new PageImages();
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last != null) {
+                    undoTransaction(tid.getId(), last, pages);
+                }
+                // CLR先落盘，再把撤销后的页写回磁盘
+                force();
+                for (PageId pid : pages.install()) {
+                    Database.getBufferPool().discardPage(pid);
                 }
+            }
+        }
+    }
 
+    /** Read the page change of an UPDATE or CLR record. */
+    private PageDelta deltaOf(LogRecord record) throws IOException {
+        ByteBuffer payload = record.payload.duplicate();
+        if (record.type == CLR_RECORD) {
+            payload.getLong(); // undoNext
+        }
+        return readPageDelta(payload);
+    }
 
+    /**
+     * Undo the records of tid from lsn backwards, following the chain of
+     * previous LSNs, on the given page images, and write a CLR for every
+     * update undone. Records already compensated by a CLR are skipped.
+     */
+    private void undoTransaction(long tid, long lsn, PageImages pages) throws IOException {
+        while (lsn != -1) {
+            LogRecord record = readRecord(lsn);
+            if (record == null) {
+                throw new IOException("log record " + lsn + " of transaction " + tid + " is missing");
+            }
+            switch (record.type) {
+            case UPDATE_RECORD:
+                PageDelta delta = readPageDelta(record.payload);
+                delta.undo(pages.get(delta));
+                PageDelta compensation = delta.inverse();
+                ByteBuffer buf = beginRecord(CLR_RECORD, tid, LONG_SIZE + pageDeltaSize(compensation));
+                buf.putLong(record.prevLsn);
+                writePageDelta(buf, compensation);
+                appendRecord();
+                lsn = record.prevLsn;
+                break;
+            case CLR_RECORD:
+                // 这条CLR之前、undoNext之后的记录已经撤销过了
+                lsn = record.payload.getLong();
+                break;
+            default:
+                lsn = record.prevLsn;
             }
         }
     }
@@ -551,102 +1129,138 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // 检查点不写页，先把脏页写回去，下次启动就没有要redo的
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                flushBuffer();
+                for (long index : new ArrayList<>(segments.keySet())) {
+                    segments.remove(index).close();
+                }
+                headerChannel.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Find the end of an existing log: the end of its last complete record.
+     * Anything after it was torn by a crash and is cut off, and new records
+     * are appended from there.
+     */
+    private void openExisting() throws IOException {
+        flushBuffer();
+        if (headerChannel.size() < HEADER_SIZE) {
+            startEmpty();
+            return;
+        }
+        segmentSize = readHeader(2 * LONG_SIZE);
+        baseLsn = readHeader(LONG_SIZE);
+        long end = baseLsn;
+        for (LogRecord r = readRecord(end); r != null; r = readRecord(end)) {
+            end = r.nextLsn;
+        }
+        // 截断时没删完的旧段和被撕裂的尾部都去掉
+        long last = end / segmentSize;
+        for (long index : existingSegments()) {
+            if ((index + 1) * segmentSize <= baseLsn || index > last) {
+                dropSegment(index);
+            } else {
+                FileChannel ch = segment(index, false);
+                ch.truncate(index == last ? end % segmentSize : segmentSize);
+            }
+        }
+        startAt(baseLsn, end);
+    }
+
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery runs in three passes.  Analysis reads the transaction
+        table and dirty page table of the last checkpoint and brings them
+        up to date with the records after it.  Redo repeats history: from
+        the oldest recLSN in the dirty page table it reapplies every
+        UPDATE and CLR to a dirty page that was not written since.  Undo
+        rolls back every transaction left in the transaction table,
+        writing CLRs, and ends each with an ABORT record.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                HashMap<Long, List<Page[]>> undoMap = new HashMap<>();
-                raf.seek(0);
+                openExisting();
                 print();
-                long checkpoint = raf.readLong();
+
+                // analysis：事务表（tid -> 最后一条记录）和脏页表（页 -> recLSN）
+                Map<Long, Long> transactions = new HashMap<>();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                long start = baseLsn;
+                long checkpoint = readHeader(0);
                 if(checkpoint!=-1){
-                    HashMap<Long, Long> tidPos = new HashMap<>();
-                    raf.seek(checkpoint);
-                    //跳过record type和tid
-                    raf.seek(raf.getFilePointer()+12);
-                    //获取正在进行事务的个数
-                    int num = raf.readInt();
-                    while(num>0){
-                        //获取每一个事务的tid和第一条log record OFFSET
-                        long curTid = raf.readLong();
-                        long offset = raf.readLong();
-                        tidPos.put(curTid,offset);
-                        num--;
-                    }
-                    for(Long pos:tidPos.keySet()){
-                        raf.seek(tidPos.get(pos));
-                        recoverSearch(raf,undoMap);
+                    Checkpoint cp = readCheckpoint(readRecord(checkpoint));
+                    for (Map.Entry<Long, long[]> e : cp.transactions.entrySet()) {
+                        transactions.put(e.getKey(), e.getValue()[1]);
                     }
-                }else{
-                    System.out.println(raf.getFilePointer() + "-----------");
-                    recoverSearch(raf, undoMap);
+                    dirtyPages.putAll(cp.dirtyPages);
+                    // 检查点是模糊的：从它开始时的位置扫描，补上复制脏页表之后写的记录
+                    start = cp.beginLsn;
                 }
-                //进行undo操作
-                for(Long tid:undoMap.keySet()){
-                    Page[] pages = undoMap.get(tid).get(0);
-                    Page before = pages[0];
-                    DbFile databaseFile = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                    databaseFile.writePage(before);
+                for (LogRecord record = readRecord(start); record != null; record = readRecord(record.nextLsn)) {
+                    switch (record.type) {
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        transactions.remove(record.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case CLR_RECORD:
+                        dirtyPages.putIfAbsent(deltaOf(record).pid, record.lsn);
+                        // 检查点之前的记录不能盖掉检查点里更新的最后一条记录
+                        transactions.merge(record.tid, record.lsn, Math::max);
+                        break;
+                    case BEGIN_RECORD:
+                        transactions.merge(record.tid, record.lsn, Math::max);
+                        break;
+                    }
                 }
-                undoMap.clear();
-            }
-        }
-    }
 
-    /**
-     * 从指定位置开始检索每一条记录，update记录就直接放入map中，commit就直接将最终page刷盘，abort就直接将开始前的page刷盘
-     * @param raf
-     * @param map
-     */
-    private void recoverSearch(RandomAccessFile raf,Map<Long,List<Page[]>> map) throws IOException {
-        while(true){
-            try{
-                int type = raf.readInt();
-                long curTid = raf.readLong();
-                if(type==3){
-                    //update
-                    if(!map.containsKey(curTid)){
-                        map.put(curTid,new ArrayList<>());
+                // redo：没在脏页表里、或者在recLSN之前的修改已经在磁盘上了
+                PageImages pages = new PageImages();
+                long redoStart = nextLsn;
+                for (long recLsn : dirtyPages.values()) {
+                    redoStart = Math.min(redoStart, recLsn);
+                }
+                for (LogRecord record = readRecord(redoStart); record != null; record = readRecord(record.nextLsn)) {
+                    if (record.type != UPDATE_RECORD && record.type != CLR_RECORD) {
+                        continue;
+                    }
+                    PageDelta delta = deltaOf(record);
+                    Long recLsn = dirtyPages.get(delta.pid);
+                    if (recLsn != null && record.lsn >= recLsn) {
+                        delta.redo(pages.get(delta));
                     }
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-                    map.get(curTid).add(new Page[]{before,after});
-                }else if(type==2 && map.containsKey(curTid)){
-                    //commit
-                    Page[] pages = map.get(curTid).get(map.get(curTid).size() - 1);
-                    Page after = pages[1];
-                    DbFile databaseFile = Database.getCatalog().getDatabaseFile(after.getId().getTableId());
-                    databaseFile.writePage(after);
-                    map.remove(curTid);
-                }else if(type==1 && map.containsKey(curTid)){
-                    //abort
-                    Page[] pages = map.get(curTid).get(0);
-                    Page before = pages[0];
-                    DbFile databaseFile = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                    databaseFile.writePage(before);
-                    map.remove(curTid);
                 }
-                raf.seek(raf.getFilePointer()+8);
-            }catch (EOFException e){
-                break;
+
+                //进行undo操作
+                for (Map.Entry<Long, Long> e : transactions.entrySet()) {
+                    long tid = e.getKey();
+                    tidToLastLogRecord.put(tid, e.getValue());
+                    undoTransaction(tid, e.getValue(), pages);
+                    beginRecord(ABORT_RECORD, tid, 0);
+                    appendRecord();
+                    tidToLastLogRecord.remove(tid);
+                }
+                force();
+                pages.install();
             }
         }
     }
+
 //    /**
 //     * recover的点应该正在活跃的事务中最早的那个
 //     * tidToFirstLogRecord中记录的key只有存活的
@@ -764,83 +1378,122 @@ public class LogFile {
 
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    public synchronized void print() throws IOException {
+        flushBuffer();
+        if (headerChannel.size() < HEADER_SIZE) {
+            System.out.println("empty log");
+            return;
+        }
 
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+        System.out.println("0: checkpoint record at LSN " + readHeader(0));
+        long lsn = readHeader(LONG_SIZE);
+        System.out.println(LONG_SIZE + ": first record at LSN " + lsn);
+        System.out.println(2 * LONG_SIZE + ": segment size " + readHeader(2 * LONG_SIZE));
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+        for (LogRecord record = readRecord(lsn); record != null; record = readRecord(record.nextLsn)) {
+            System.out.println(record.lsn + ": RECORD TYPE " + record.type + ", TID " + record.tid
+                    + ", PREV LSN " + record.prevLsn + ", " + (record.nextLsn - record.lsn) + " BYTES");
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+            switch (record.type) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT), BEGIN LSN: " + record.payload.getLong());
+                int numTransactions = record.payload.getInt();
+                System.out.println("  NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                while (numTransactions-- > 0) {
+                    long tid = record.payload.getLong();
+                    long firstRecord = record.payload.getLong();
+                    long lastRecord = record.payload.getLong();
+                    System.out.println("  TID: " + tid + ", FIRST LOG RECORD: " + firstRecord + ", LAST LOG RECORD: " + lastRecord);
+                }
+                int numDirty = record.payload.getInt();
+                System.out.println("  NUMBER OF DIRTY PAGES: " + numDirty);
+                while (numDirty-- > 0) {
+                    PageId pid = readPageId(record.payload, record.payload.get());
+                    System.out.println("  PAGE: " + pid.getTableId() + "/" + pid.getPageNumber() + ", RECLSN: " + record.payload.getLong());
+                }
+                break;
+            case CLR_RECORD:
+            case UPDATE_RECORD:
+                if (record.type == CLR_RECORD) {
+                    System.out.println(" (CLR), UNDO NEXT LSN: " + record.payload.getLong(0));
+                } else {
+                    System.out.println(" (UPDATE)");
+                }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                PageDelta delta = deltaOf(record);
 
-                    break;
+                System.out.println("  table id " + delta.pid.getTableId()
+                        + ", page number " + delta.pid.getPageNumber());
+                for (int i = 0; i < delta.offsets.length; i++) {
+                    System.out.println("  bytes " + delta.offsets[i] + " TO " + (delta.offsets[i] + delta.after[i].length));
                 }
-
-            } catch (EOFException e) {
-                //e.printStackTrace();
                 break;
             }
         }
+    }
+
+    /** Force everything written to the log so far to disk. */
+    public void force() throws IOException {
+        syncTo(nextLsn);
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /**
+     * Force the log to disk up to and including the record with the given
+     * LSN. Call this with a page's LSN before writing the page to disk.
+     */
+    public void forceTo(long lsn) throws IOException {
+        syncTo(lsn + 1);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Block until every record with an LSN below lsn is on disk. Only one
+     * thread forces the log at a time; it forces everything appended before
+     * it started, so threads that were waiting for it usually find their
+     * records already durable and return without another fsync.
+     */
+    void syncTo(long lsn) throws IOException {
+        synchronized (syncLock) {
+            if (durableLsn >= lsn) {
+                return;
+            }
+        }
+        long target;
+        synchronized (this) {
+            // 要等的记录可能还在缓冲区里，先写进文件；之前追加的记录一起写
+            if (bufferStartLsn < lsn) {
+                flushBuffer();
+            }
+            target = nextLsn;
+        }
+        synchronized (syncLock) {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            // 上次落盘的位置到target之间的段都要刷，通常只有一个
+            for (FileChannel ch : segments.subMap(durableLsn / segmentSize, true, (target - 1) / segmentSize, true).values()) {
+                ch.force(false);
+            }
+            durableLsn = Math.max(durableLsn, target);
+            forceCount++;
+        }
+    }
+
+    /** Returns how many times the log has been forced to disk. */
+    public long getForceCount() {
+        synchronized (syncLock) {
+            return forceCount;
+        }
     }
 
 }
@@ -58,4 +58,16 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Returns the LSN of the last log record that changed this page, or -1
+     * if no record has been written for it since it was read. The LSN is
+     * kept in memory only.
+     *
+     * @see LogFile
+     */
+    long getLSN();
+
+    /** Set the LSN of the last log record that changed this page. */
+    void setLSN(long lsn);
 }
@@ -0,0 +1,44 @@
+package simpledb.storage;
+
+/**
+ * The page replacement policies the BufferPool can be constructed with.
+ * Every partition of the pool gets its own {@link EvictionPolicy} instance.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public enum ReplacementPolicy {
+    /** Exact LRU; every hit relinks the list. */
+    LRU,
+    /**
+     * LRU-2: evicts the page whose second most recent reference is oldest, so
+     * pages touched once by a scan go before pages that are used repeatedly.
+     */
+    LRU_K,
+    /**
+     * ARC: balances a recency list and a frequency list, adapting the split
+     * between them with ghost lists of recently evicted pages.
+     */
+    ARC,
+    /**
+     * CLOCK with hot and cold pages (a simplified CLOCK-Pro). Hits only set a
+     * reference bit without locking, and new pages start cold so a large
+     * sequential scan cycles through the cold frames instead of evicting
+     * frequently used pages such as B+ tree internal nodes.
+     */
+    CLOCK;
+
+    /** Create the policy for a partition holding up to capacity pages. */
+    public EvictionPolicy newPolicy(int capacity) {
+        switch (this) {
+            case LRU_K:
+                return new LRUKEvictionPolicy(capacity);
+            case ARC:
+                return new ARCEvictionPolicy(capacity);
+            case CLOCK:
+                return new ClockEvictionPolicy(capacity);
+            case LRU:
+            default:
+                return new LRUEvictionPolicy();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.function.Function;
+
+/**
+ * Read-ahead for one scan. The scan calls {@link #advanced} every time it
+ * moves from a page to the page that follows it (page N+1 of a HeapFile, the
+ * right sibling of a B+ tree leaf). From the first such step on, the scan is
+ * taken to be sequential and the next {@link BufferPool#getPrefetchWindow()}
+ * pages are read in the background; the window is topped up again once the
+ * scan has used half of it, so the disk stays busy while the scan consumes
+ * pages that are already cached.
+ */
+public class SequentialPrefetcher {
+
+    private final Function<Page, PageId> successor;
+    // 已经请求预读、但扫描还没有走到的页数
+    private int ahead;
+
+    /**
+     * @param successor returns the id of the page after the given one, or
+     *   null at the end of the scan
+     */
+    public SequentialPrefetcher(Function<Page, PageId> successor) {
+        this.successor = successor;
+    }
+
+    /**
+     * The scan has moved on to page, the successor of the page it read
+     * before.
+     */
+    public void advanced(Page page) {
+        BufferPool bp = Database.getBufferPool();
+        int window = bp.getPrefetchWindow();
+        if (window <= 0) {
+            return;
+        }
+        if (ahead > 0) {
+            ahead--;
+        }
+        if (ahead > window / 2) {
+            return;
+        }
+        PageId next = successor.apply(page);
+        if (next != null) {
+            bp.prefetch(next, window, successor);
+            ahead = window;
+        }
+    }
+
+    /** Forget the read-ahead state, e.g. when the scan is rewound. */
+    public void reset() {
+        ahead = 0;
+    }
+}
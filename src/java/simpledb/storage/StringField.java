@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.execution.Predicate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -15,6 +16,9 @@ public class StringField implements Field {
 	private final String value;
 	private final int maxSize;
 
+	// padding written by serialize(ByteBuffer)
+	private static final byte[] ZEROS = new byte[Type.STRING_LEN];
+
 	public String getValue() {
 		return value;
 	}
@@ -69,6 +73,29 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string at the current position of buf, in the same format as
+	 * {@link #serialize(DataOutputStream)}: maxSize + 4 bytes in total.
+	 */
+	public void serialize(ByteBuffer buf) {
+		String s = value;
+		int overflow = maxSize - s.length();
+		if (overflow < 0) {
+			s = s.substring(0, maxSize);
+			overflow = 0;
+		}
+		buf.putInt(s.length());
+		// 和DataOutputStream.writeBytes一样，每个字符只写低8位
+		for (int i = 0; i < s.length(); i++) {
+			buf.put((byte) s.charAt(i));
+		}
+		while (overflow > 0) {
+			int n = Math.min(overflow, ZEROS.length);
+			buf.put(ZEROS, 0, n);
+			overflow -= n;
+		}
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -0,0 +1,215 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Old committed versions of heap pages, kept for snapshot reads.
+ * <p>
+ * Every commit gets the next commit timestamp, and a snapshot transaction
+ * sees the database as of the last commit before it started. When a writer
+ * first fetches a page for writing, the page still holds the latest
+ * committed version, because write locks are exclusive; the store keeps a
+ * copy of it. Snapshot readers are served that copy while the writer runs.
+ * When the writer commits the copy is added to the page's version chain,
+ * valid for snapshots older than the commit, and dropped once no such
+ * snapshot is left. When the writer aborts the copy is simply dropped.
+ * <p>
+ * A page with neither a running writer nor a newer commit than the snapshot
+ * is read from the buffer pool. Readers and writers of the same page are
+ * serialized on one of a fixed number of stripe locks, so the copy a reader
+ * makes can never contain a write that has not been recorded here.
+ */
+class VersionStore {
+
+    /** Number of locks that pages are striped over. */
+    private static final int STRIPES = 64;
+
+    /** Loads the current version of a page. */
+    interface PageLoader {
+        Page load(PageId pid) throws DbException;
+    }
+
+    /** A committed page image and the commit that replaced it. */
+    private static class Version {
+        // 对快照时间戳小于validUntil的事务可见
+        final long validUntil;
+        final HeapPage image;
+
+        Version(long validUntil, HeapPage image) {
+            this.validUntil = validUntil;
+            this.image = image;
+        }
+    }
+
+    /** The versions of one page; guarded by the page's stripe lock. */
+    private static class Chain {
+        // 正在写这一页的事务，以及它拿到写锁时页的已提交内容
+        TransactionId writer;
+        HeapPage committed;
+        // 按validUntil从小到大
+        final LinkedList<Version> versions = new LinkedList<>();
+
+        boolean isEmpty() {
+            return writer == null && versions.isEmpty();
+        }
+    }
+
+    private final Map<PageId, Chain> chains = new ConcurrentHashMap<>();
+    private final Object[] stripes = new Object[STRIPES];
+    // 快照事务 -> 它的快照时间戳
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // 以下两个字段由this保护：最后一次提交的时间戳，以及每个时间戳上活跃的快照个数
+    private long commitTs;
+    private final TreeMap<Long, Integer> activeSnapshots = new TreeMap<>();
+
+    VersionStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private Object stripe(PageId pid) {
+        return stripes[(pid.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /** Start a snapshot for tid as of the last commit, and return its timestamp. */
+    synchronized long beginSnapshot(TransactionId tid) {
+        long ts = commitTs;
+        snapshots.put(tid, ts);
+        activeSnapshots.merge(ts, 1, Integer::sum);
+        return ts;
+    }
+
+    /** Return the snapshot timestamp of tid, or null if tid is not a snapshot transaction. */
+    Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** End tid's snapshot, if it has one, and drop the versions no snapshot needs any more. */
+    void endSnapshot(TransactionId tid) {
+        long oldest;
+        synchronized (this) {
+            Long ts = snapshots.remove(tid);
+            if (ts == null) {
+                return;
+            }
+            if (activeSnapshots.merge(ts, -1, Integer::sum) == 0) {
+                activeSnapshots.remove(ts);
+            }
+            oldest = activeSnapshots.isEmpty() ? Long.MAX_VALUE : activeSnapshots.firstKey();
+        }
+        for (PageId pid : chains.keySet()) {
+            synchronized (stripe(pid)) {
+                Chain chain = chains.get(pid);
+                if (chain == null) {
+                    continue;
+                }
+                Iterator<Version> it = chain.versions.iterator();
+                while (it.hasNext() && it.next().validUntil <= oldest) {
+                    it.remove();
+                }
+                if (chain.isEmpty()) {
+                    chains.remove(pid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that tid is about to write page, which must still hold the
+     * latest committed version. Does nothing if tid already wrote it.
+     */
+    void beforeWrite(TransactionId tid, HeapPage page) throws IOException {
+        PageId pid = page.getId();
+        synchronized (stripe(pid)) {
+            Chain chain = chains.computeIfAbsent(pid, k -> new Chain());
+            if (tid.equals(chain.writer)) {
+                return;
+            }
+            // 之前的写者没改这一页就释放了锁（比如insertTuple跳过的满页），它的副本和当前内容一样
+            chain.writer = tid;
+            chain.committed = new HeapPage(page.getId(), page.getPageData());
+        }
+    }
+
+    /**
+     * Return the version of a heap page that a snapshot taken at ts sees.
+     *
+     * @param loader loads the current version if no older one applies
+     */
+    Page read(HeapPageId pid, long ts, PageLoader loader) throws DbException {
+        synchronized (stripe(pid)) {
+            Chain chain = chains.get(pid);
+            if (chain != null) {
+                for (Version v : chain.versions) {
+                    if (v.validUntil > ts) {
+                        return v.image;
+                    }
+                }
+                if (chain.writer != null) {
+                    return chain.committed;
+                }
+            }
+            // 没有人在写，也没有比快照新的提交：当前版本就是快照看到的版本，复制一份防止之后被写者修改
+            Page page = loader.load(pid);
+            try {
+                return new HeapPage(pid, page.getPageData());
+            } catch (IOException e) {
+                throw new DbException("could not copy page " + pid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Commit tid: the committed copies of the pages it wrote become old
+     * versions, kept only if a running snapshot may still need them.
+     */
+    synchronized void commit(TransactionId tid, Collection<PageId> pages) {
+        long ts = commitTs + 1;
+        boolean keep = !activeSnapshots.isEmpty();
+        for (PageId pid : pages) {
+            synchronized (stripe(pid)) {
+                Chain chain = chains.get(pid);
+                if (chain == null || !tid.equals(chain.writer)) {
+                    continue;
+                }
+                if (keep) {
+                    chain.versions.addLast(new Version(ts, chain.committed));
+                }
+                chain.writer = null;
+                chain.committed = null;
+                if (chain.isEmpty()) {
+                    chains.remove(pid);
+                }
+            }
+        }
+        // 所有页都处理完才公开新的时间戳，之后开始的快照才能看到这次提交
+        commitTs = ts;
+    }
+
+    /** Abort tid: the committed copies of the pages it wrote are still current. */
+    void abort(TransactionId tid, Collection<PageId> pages) {
+        for (PageId pid : pages) {
+            synchronized (stripe(pid)) {
+                Chain chain = chains.get(pid);
+                if (chain == null || !tid.equals(chain.writer)) {
+                    continue;
+                }
+                chain.writer = null;
+                chain.committed = null;
+                if (chain.isEmpty()) {
+                    chains.remove(pid);
+                }
+            }
+        }
+    }
+}
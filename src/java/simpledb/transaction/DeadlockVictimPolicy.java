@@ -0,0 +1,17 @@
+package simpledb.transaction;
+
+/**
+ * How the LockManager picks the transaction to abort when it finds a cycle
+ * in the waits-for graph. Ties are broken in favour of aborting the
+ * youngest transaction.
+ *
+ * @see LockManager#setVictimPolicy(DeadlockVictimPolicy)
+ */
+public enum DeadlockVictimPolicy {
+    /** Abort the transaction that started last; it has likely done the least work. */
+    YOUNGEST,
+    /** Abort the transaction holding the fewest page locks. */
+    FEWEST_LOCKS,
+    /** Abort the transaction that has written the fewest bytes to the log. */
+    LEAST_LOG
+}
@@ -5,29 +5,43 @@ import simpledb.common.Permissions;
 // 定义一个锁
 public class Lock {
     private TransactionId transactionId;
-    private Permissions permissions;
+//    private Permissions permissions;
+    private LockMode mode;
 
     public Lock(TransactionId transactionId,Permissions permissions){
+        this(transactionId, LockMode.of(permissions));
+    }
+
+    public Lock(TransactionId transactionId,LockMode mode){
         this.transactionId =  transactionId;
-        this.permissions = permissions;
+        this.mode = mode;
     }
 
     public TransactionId getTransactionId(){
         return transactionId;
     }
 
+    // 页锁只有S和X两种，X对应READ_WRITE
     public Permissions getPermissions(){
-        return permissions;
+        return mode == LockMode.X ? Permissions.READ_WRITE : Permissions.READ_ONLY;
     }
 
     public void setPermissions(Permissions permissions){
-        this.permissions = permissions;
+        this.mode = LockMode.of(permissions);
+    }
+
+    public LockMode getMode(){
+        return mode;
+    }
+
+    public void setMode(LockMode mode){
+        this.mode = mode;
     }
 
     @Override
     public String toString() {
         return "Lock{" +
-                "permissions=" + permissions +
+                "mode=" + mode +
                 ", transactionId=" + transactionId +
                 '}';
     }
@@ -1,126 +1,581 @@
 package simpledb.transaction;
 
+import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.storage.PageId;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 锁管理器
+ * <p>
+ * Multi-granularity locks on tables and pages. Tables are locked in one of
+ * the {@link LockMode}s; pages are locked shared or exclusive, and locking a
+ * page first takes an IS or IX lock on its table. A transaction whose table
+ * lock already covers the page, such as S for a read, takes no page lock at
+ * all.
+ * <p>
+ * Once a transaction holds more than the escalation threshold of page locks
+ * in one table, it tries to trade them for a single S or X lock on the table.
+ * Escalation never waits: if the table lock cannot be granted right away the
+ * page locks are kept and escalation is tried again on the next page.
+ * <p>
+ * Every locked table and page has a FIFO queue of waiting requests; a
+ * blocked thread waits on its own request and is woken when the request is
+ * granted, rather than polling. Requests are granted in arrival order, so a
+ * waiting writer is not starved by readers that arrive after it, and readers
+ * queued behind each other are granted together. A transaction upgrading a
+ * lock it holds goes to the front of the queue.
+ * <p>
+ * Deadlocks are detected, not timed out. A request that has to wait adds
+ * edges to the waits-for graph: from its transaction to every conflicting
+ * holder and to every request queued ahead of it. Any new cycle must pass
+ * through the new waiter, so a depth-first search from it is enough to find
+ * one. The {@link DeadlockVictimPolicy} then picks one transaction on the
+ * cycle, and only that transaction's request fails. A transaction waits for
+ * at most one lock at a time.
+ * <p>
+ * There is no global lock on the fast path. Each lock state is its own
+ * monitor, and a per-transaction table of held locks lets
+ * {@link #releaseAllLock(TransactionId)} visit only the locks the transaction
+ * took. Only requests that have to wait take the detector lock, so that one
+ * deadlock search runs at a time.
  */
 public class LockManager {
-    //key：页id，value：作用于该页的所有lock
-//    private Map<Integer, List<Lock>> lockCache;
-    private Map<PageId, List<Lock>> lockCache;
+
+    /** Timeout for {@link #acquireLock(TransactionId, PageId, Permissions, long)} that never expires. */
+    public static final long WAIT_FOREVER = Long.MAX_VALUE;
+
+    /** Default number of page locks in one table after which a transaction locks the table instead. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** The lockable resource standing for a whole table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId);
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** A lock request that is waiting in a queue. */
+    private static class Request {
+        final TransactionId tid;
+        // PageId或者TableKey
+        final Object resource;
+        final LockMode mode;
+        // 请求排队的那个资源的状态，请求还在队列里时它不会从lockCache里删掉
+        final LockState state;
+        // 在资源状态的锁下被置为true，之后在request自己的锁下通知等待的线程
+        volatile boolean granted;
+        // 被选为死锁的牺牲者，已经从队列里移除
+        volatile boolean aborted;
+
+        Request(TransactionId tid, Object resource, LockMode mode, LockState state) {
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+            this.state = state;
+        }
+    }
+
+    /**
+     * The holders of a table or page lock and the requests waiting for it.
+     * Each LockState is its own monitor; all of its fields are guarded by it.
+     */
+    private static class LockState {
+        final List<Lock> holders = new ArrayList<>();
+        final LinkedList<Request> waiters = new LinkedList<>();
+        // 空了之后从lockCache删掉，拿到已删除状态的线程要重新取一次
+        boolean removed;
+
+        boolean isEmpty() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+
+        Lock holder(TransactionId tid) {
+            for (Lock l : holders) {
+                if (l.getTransactionId().equals(tid)) {
+                    return l;
+                }
+            }
+            return null;
+        }
+
+        /** Return true if tid could hold mode given the other holders. */
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Lock l : holders) {
+                if (!l.getTransactionId().equals(tid) && !mode.compatibleWith(l.getMode())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Grant mode to tid. Returns true if tid did not hold the lock before. */
+        boolean grant(TransactionId tid, LockMode mode) {
+            Lock held = holder(tid);
+            if (held == null) {
+                holders.add(new Lock(tid, mode));
+                return true;
+            }
+            // 锁升级
+            held.setMode(held.getMode().combine(mode));
+            return false;
+        }
+    }
+
+    /** The locks a transaction holds. */
+    private static class HeldLocks {
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        // 表id -> 该表上持有的页锁个数，决定什么时候升级成表锁
+        final Map<Integer, Integer> pagesPerTable = new ConcurrentHashMap<>();
+    }
+
+    //key：页id或者表，value：它上面持有的锁和等待队列
+    private final Map<Object, LockState> lockCache;
+    // 事务 -> 它持有的锁，在对应资源状态的锁下更新
+    private final Map<TransactionId, HeldLocks> txnLocks = new ConcurrentHashMap<>();
+    // 正在等锁的事务 -> 它的请求，等待图的边由这些请求和lockCache算出来
+    private final Map<TransactionId, Request> waiting = new ConcurrentHashMap<>();
+    // 死锁检测一次只跑一个，只有要等待的请求才会拿这把锁
+    private final Object detector = new Object();
+    private volatile DeadlockVictimPolicy victimPolicy = DeadlockVictimPolicy.YOUNGEST;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
 
     public LockManager() {
         this.lockCache = new ConcurrentHashMap<>();
     }
+
+    /** Set how the victim of a deadlock is chosen. */
+    public void setVictimPolicy(DeadlockVictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    public DeadlockVictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
     /**
-     * 获取锁
-     * @param tid
-     * @param pageId
-     * @param permissions
-     * @return
+     * Set how many page locks a transaction may hold in one table before it
+     * tries to lock the whole table instead.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Try to acquire a lock without waiting.
+     *
+     * @return true if the lock was granted
+     */
+    public Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions) {
+        return acquireLock(tid, pageId, permissions, 0);
+    }
+
+    /**
+     * Acquire a lock on a page, waiting up to timeoutMillis for conflicting
+     * locks to be released; {@link #WAIT_FOREVER} waits without a limit. The
+     * table is locked first in the matching intention mode, unless the
+     * transaction's table lock already covers the page. The calling thread
+     * sleeps while it waits.
+     *
+     * @return true if the lock was granted, false if the timeout expired, the
+     *   thread was interrupted, or tid was chosen as the victim of a deadlock
      */
-//    public synchronized Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions) {
-//        Lock lock = new Lock(tid, permissions);
-//        int pid = pageId.getPageNumber();
-//        List<Lock> locks = lockCache.get(pid);
-//        // 该页上不存在锁，直接获取
-//        if(locks == null || locks.size() == 0) {
-//            locks = new ArrayList<>();
-//            locks.add(lock);
-//            lockCache.put(pid, locks);
-//            return true;
-//        }
-//        if(locks.size() == 1) {
-//            //当只有一个事务抢占锁
-//            Lock curLock = locks.get(0);
-//            // 判断是否是自己的锁
-//            if(curLock.getTransactionId().equals(tid)) {
-////                // 判断自己加的是什么锁，加读锁直接返回
-////                if(permissions.equals(Permissions.READ_ONLY)) return true;
-////                else {
-////                    // 加写锁需要进行锁升级
-////                    if(curLock.getPermissions().equals(Permissions.READ_ONLY)) {
-////                        curLock.setPermissions(Permissions.READ_WRITE);
-////                        return true;
-////                    }
-////                }
-////                return true;
-//                //判断是否进行锁升级
-//                if(curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_WRITE)){
-//                    curLock.setPermissions(Permissions.READ_WRITE);
-//                }
-//                return true;
-//            }
-//            else {
-//                if(curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_ONLY)) {
-//                    locks.add(lock);
-//                    return true;
-//                }
-//                return false;
-//            }
-//        }
-//        //当有多个事务抢占锁，说明必然是多个读事务
-//        if(lock.getPermissions().equals(Permissions.READ_WRITE)) return false;
-//        for(Lock l : locks) {
-//            if(l.getTransactionId().equals(lock.getTransactionId())) return true;
-//        }
-//        locks.add(lock);
-//        return true;
-//    }
-
-    public synchronized Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions) {
-        Lock lock = new Lock(tid, permissions);
-        List<Lock> locks = lockCache.get(pageId);
-        // 该页上不存在锁，直接获取
-        if(locks == null || locks.size() == 0) {
-            locks = new ArrayList<>();
-            locks.add(lock);
-            lockCache.put(pageId, locks);
+    public Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions, long timeoutMillis) {
+        TableKey table = new TableKey(pageId.getTableId());
+        LockMode tableMode = modeHeld(tid, table);
+        LockMode pageMode = LockMode.of(permissions);
+        if (tableMode != null && tableMode.covers(pageMode)) {
             return true;
         }
-        if(locks.size() == 1) {
-            //当只有一个事务抢占锁
-            Lock curLock = locks.get(0);
-            // 判断是否是自己的锁
-            if(curLock.getTransactionId().equals(tid)) {
-//                // 判断自己加的是什么锁，加读锁直接返回
-//                if(permissions.equals(Permissions.READ_ONLY)) return true;
-//                else {
-//                    // 加写锁需要进行锁升级
-//                    if(curLock.getPermissions().equals(Permissions.READ_ONLY)) {
-//                        curLock.setPermissions(Permissions.READ_WRITE);
-//                        return true;
-//                    }
-//                }
-//                return true;
-                //判断是否进行锁升级
-                if(curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_WRITE)){
-                    curLock.setPermissions(Permissions.READ_WRITE);
+        long start = System.nanoTime();
+        if (!acquire(tid, table, LockMode.intentionFor(permissions), timeoutMillis)) {
+            return false;
+        }
+        long remaining = timeoutMillis;
+        if (timeoutMillis != WAIT_FOREVER && timeoutMillis > 0) {
+            // 等表锁用掉的时间从总的超时里扣掉
+            remaining = Math.max(0, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        if (!acquire(tid, pageId, pageMode, remaining)) {
+            return false;
+        }
+        HeldLocks held = txnLocks.get(tid);
+        if (held.pagesPerTable.getOrDefault(table.tableId, 0) > escalationThreshold) {
+            escalate(tid, table, held);
+        }
+        return true;
+    }
+
+    /**
+     * Acquire a lock on a whole table, waiting up to timeoutMillis like
+     * {@link #acquireLock(TransactionId, PageId, Permissions, long)}. If tid
+     * already holds a weaker lock on the table it is upgraded to the weakest
+     * mode covering both.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean acquireTableLock(TransactionId tid, int tableId, LockMode mode, long timeoutMillis) {
+        return acquire(tid, new TableKey(tableId), mode, timeoutMillis);
+    }
+
+    /** Return the mode tid holds on the table, or null if it holds no table lock. */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        return modeHeld(tid, new TableKey(tableId));
+    }
+
+    private LockMode modeHeld(TransactionId tid, Object resource) {
+        HeldLocks held = txnLocks.get(tid);
+        if (held == null || !held.resources.contains(resource)) {
+            return null;
+        }
+        LockState state = lockCache.get(resource);
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            Lock l = state.holder(tid);
+            return l == null ? null : l.getMode();
+        }
+    }
+
+    /**
+     * Replace tid's page locks in the table with one S or X lock on the
+     * table, if that lock can be granted without waiting.
+     */
+    private void escalate(TransactionId tid, TableKey table, HeldLocks held) {
+        LockMode intention = modeHeld(tid, table);
+        // 只读过这张表时升级成S，写过时升级成X
+        LockMode target = intention == LockMode.IS || intention == LockMode.S ? LockMode.S : LockMode.X;
+        if (!acquire(tid, table, target, 0)) {
+            return;
+        }
+        List<Request> granted = new ArrayList<>();
+        for (Object resource : held.resources) {
+            if (resource instanceof PageId && ((PageId) resource).getTableId() == table.tableId) {
+                granted.addAll(releaseResource(tid, resource));
+            }
+        }
+        signal(granted);
+    }
+
+    /**
+     * Acquire mode on a table or page, waiting up to timeoutMillis.
+     */
+    private boolean acquire(TransactionId tid, Object resource, LockMode mode, long timeoutMillis) {
+        Request request = null;
+        while (request == null) {
+            LockState state = lockCache.computeIfAbsent(resource, k -> new LockState());
+            synchronized (state) {
+                if (state.removed) {
+                    continue;
+                }
+                Lock held = state.holder(tid);
+                if (held != null && held.getMode().covers(mode)) {
+                    return true;
+                }
+                // 队列里没有人在等（或者是锁升级）时才能直接拿锁，保证先来先得
+                if ((held != null || state.waiters.isEmpty()) && state.compatible(tid, mode)) {
+                    grant(resource, state, tid, mode);
+                    return true;
+                }
+                if (timeoutMillis <= 0) {
+                    dropIfEmpty(resource, state);
+                    return false;
+                }
+                request = new Request(tid, resource, mode, state);
+                if (held != null) {
+                    // 已经持有锁的事务排在队首，否则它会和排在前面的请求互相等待
+                    state.waiters.addFirst(request);
+                } else {
+                    state.waiters.addLast(request);
+                }
+                waiting.put(tid, request);
+            }
+        }
+        List<Request> victims;
+        synchronized (detector) {
+            victims = breakDeadlocks(request);
+        }
+        signal(victims);
+
+        boolean interrupted = false;
+        boolean forever = timeoutMillis == WAIT_FOREVER;
+        long deadline = forever ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (request) {
+            while (!request.granted && !request.aborted) {
+                try {
+                    if (forever) {
+                        request.wait();
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(request, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
                 }
+            }
+        }
+
+        List<Request> granted = new ArrayList<>();
+        boolean res;
+        synchronized (request.state) {
+            res = request.granted;
+            if (!res && !request.aborted) {
+                granted = withdraw(request);
+            }
+        }
+        signal(granted);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return res;
+    }
+
+    /**
+     * Give tid mode on resource and record it in tid's lock table. Called
+     * with the resource's state locked.
+     */
+    private void grant(Object resource, LockState state, TransactionId tid, LockMode mode) {
+        HeldLocks held = txnLocks.computeIfAbsent(tid, k -> new HeldLocks());
+        if (state.grant(tid, mode)) {
+            held.resources.add(resource);
+            if (resource instanceof PageId) {
+                held.pagesPerTable.merge(((PageId) resource).getTableId(), 1, Integer::sum);
+            }
+        }
+    }
+
+    /** Drop the state of a resource nobody holds or waits for. Called with the state locked. */
+    private void dropIfEmpty(Object resource, LockState state) {
+        if (state.isEmpty()) {
+            state.removed = true;
+            lockCache.remove(resource, state);
+        }
+    }
+
+    /**
+     * Remove a request that gave up from its queue. Called with the
+     * resource's state locked.
+     *
+     * @return the requests behind it that could be granted as a result
+     */
+    private List<Request> withdraw(Request request) {
+        waiting.remove(request.tid, request);
+        request.state.waiters.remove(request);
+        // 队首的请求放弃之后，排在它后面的请求可能可以拿到锁了
+        return grantWaiters(request.resource, request.state);
+    }
+
+    /**
+     * Transactions that the request r has to wait for: the holders it
+     * conflicts with and everyone queued ahead of it, since requests are
+     * granted in order. Empty if r is no longer waiting.
+     */
+    private Set<TransactionId> waitsFor(Request r) {
+        Set<TransactionId> res = new HashSet<>();
+        synchronized (r.state) {
+            boolean queued = false;
+            for (Request ahead : r.state.waiters) {
+                if (ahead == r) {
+                    queued = true;
+                    break;
+                }
+                res.add(ahead.tid);
+            }
+            if (!queued) {
+                return new HashSet<>();
+            }
+            for (Lock l : r.state.holders) {
+                if (!r.mode.compatibleWith(l.getMode())) {
+                    res.add(l.getTransactionId());
+                }
+            }
+        }
+        res.remove(r.tid);
+        return res;
+    }
+
+    /**
+     * Look for a cycle in the waits-for graph through tid.
+     *
+     * @return the transactions on the cycle, starting with tid, or null
+     */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        List<TransactionId> path = new ArrayList<>();
+        path.add(tid);
+        return findCycle(tid, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId start, List<TransactionId> path, Set<TransactionId> visited) {
+        Request r = waiting.get(path.get(path.size() - 1));
+        if (r == null) {
+            return false;
+        }
+        for (TransactionId next : waitsFor(r)) {
+            if (next.equals(start)) {
                 return true;
             }
-            else {
-                if(curLock.getPermissions().equals(Permissions.READ_ONLY) && lock.getPermissions().equals(Permissions.READ_ONLY)) {
-                    locks.add(lock);
-                    return true;
+            if (!visited.add(next)) {
+                continue;
+            }
+            path.add(next);
+            if (findCycle(start, path, visited)) {
+                return true;
+            }
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
+
+    /**
+     * Abort victims until the waits-for graph has no cycle through the new
+     * request. Called with the detector lock held; the caller signals the
+     * returned requests, which are the aborted victims and any requests
+     * granted because a victim left its queue.
+     * <p>
+     * The graph is read one lock at a time, so a cycle may be made of edges
+     * from slightly different moments. Requests that have been granted or
+     * withdrawn since are skipped when choosing the victim, and the search
+     * is repeated.
+     */
+    private List<Request> breakDeadlocks(Request request) {
+        List<Request> toSignal = new ArrayList<>();
+        List<TransactionId> cycle;
+        while (!request.granted && !request.aborted && (cycle = findCycle(request.tid)) != null) {
+            TransactionId victim = chooseVictim(cycle);
+            Request r = waiting.get(victim);
+            if (r == null) {
+                continue;
+            }
+            synchronized (r.state) {
+                if (r.granted || r.aborted || !r.state.waiters.contains(r)) {
+                    continue;
                 }
-                return false;
+                r.aborted = true;
+                toSignal.add(r);
+                toSignal.addAll(withdraw(r));
             }
         }
-        //当有多个事务抢占锁，说明必然是多个读事务
-        if(lock.getPermissions().equals(Permissions.READ_WRITE)) return false;
-        for(Lock l : locks) {
-            if(l.getTransactionId().equals(lock.getTransactionId())) return true;
+        return toSignal;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        // 默认选最年轻（id最大）的事务
+        Comparator<TransactionId> youngestFirst =
+                Comparator.comparingLong(TransactionId::getId).reversed();
+        Comparator<TransactionId> order;
+        switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                order = Comparator.<TransactionId>comparingInt(t -> {
+                            HeldLocks held = txnLocks.get(t);
+                            return held == null ? 0 : held.resources.size();
+                        })
+                        .thenComparing(youngestFirst);
+                break;
+            case LEAST_LOG:
+                order = Comparator.<TransactionId>comparingLong(t -> Database.getLogFile().getLogBytes(t))
+                        .thenComparing(youngestFirst);
+                break;
+            default:
+                order = youngestFirst;
+        }
+        TransactionId victim = cycle.get(0);
+        for (TransactionId t : cycle) {
+            if (order.compare(t, victim) < 0) {
+                victim = t;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Grant waiting requests in queue order until one conflicts with the
+     * current holders. Called with the resource's state locked; the caller
+     * signals the returned requests after releasing it.
+     */
+    private List<Request> grantWaiters(Object resource, LockState state) {
+        List<Request> granted = new ArrayList<>();
+        Iterator<Request> it = state.waiters.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (!state.compatible(r.tid, r.mode)) {
+                break;
+            }
+            grant(resource, state, r.tid, r.mode);
+            r.granted = true;
+            it.remove();
+            waiting.remove(r.tid, r);
+            granted.add(r);
+        }
+        dropIfEmpty(resource, state);
+        return granted;
+    }
+
+    private static void signal(List<Request> granted) {
+        for (Request r : granted) {
+            synchronized (r) {
+                r.notify();
+            }
+        }
+    }
+
+    /**
+     * Release tid's lock on resource and remove it from tid's lock table.
+     *
+     * @return the requests that could be granted as a result
+     */
+    private List<Request> releaseResource(TransactionId tid, Object resource) {
+        LockState state = lockCache.get(resource);
+        if (state == null) {
+            return new ArrayList<>();
+        }
+        synchronized (state) {
+            Lock held = state.holder(tid);
+            if (held == null) {
+                return new ArrayList<>();
+            }
+            state.holders.remove(held);
+            HeldLocks locks = txnLocks.get(tid);
+            if (locks != null && locks.resources.remove(resource) && resource instanceof PageId) {
+                locks.pagesPerTable.merge(((PageId) resource).getTableId(), -1, Integer::sum);
+            }
+            return grantWaiters(resource, state);
         }
-        locks.add(lock);
-        return true;
     }
 
     /**
@@ -128,82 +583,52 @@ public class LockManager {
      * @param tid
      * @param pageId
      */
-//    public synchronized void releaseLock(TransactionId tid,PageId pageId){
-//        int pid = pageId.getPageNumber();
-//        List<Lock> locks = lockCache.get(pid);
-//        for(Lock l : locks) {
-//            if(l.getTransactionId().equals(tid)) {
-//                locks.remove(l);
-//                if(locks.size() == 0) lockCache.remove(pid);
-//            }
-//            return;
-//        }
-//    }
-
-    public synchronized void releaseLock(TransactionId tid,PageId pageId){
-        List<Lock> locks = lockCache.get(pageId);
-        for(Lock l : locks) {
-            if(l.getTransactionId().equals(tid)) {
-                locks.remove(l);
-                if(locks.size() == 0) lockCache.remove(pageId);
-            }
-            return;
-        }
+    public void releaseLock(TransactionId tid,PageId pageId){
+        signal(releaseResource(tid, pageId));
     }
 
     /**
-     * 释放当前事务的所有锁
+     * 释放当前事务的所有锁，只访问这个事务自己持有的锁
      * @param tid
      */
-//    public synchronized void releaseAllLock(TransactionId tid){
-//        for(Integer pid : lockCache.keySet()) {
-//            List<Lock> locks = lockCache.get(pid);
-//            for(Lock l : locks) {
-//                if(l.getTransactionId().equals(tid)) {
-//                    locks.remove(l);
-//                    if(locks.size() == 0) lockCache.remove(pid);
-//                }
-//                break;
-//            }
-//        }
-//    }
-
-    public synchronized void releaseAllLock(TransactionId tid){
-        for(PageId pageId : lockCache.keySet()) {
-            List<Lock> locks = lockCache.get(pageId);
-            for(Lock l : locks) {
-                if(l.getTransactionId().equals(tid)) {
-                    locks.remove(l);
-                    if(locks.size() == 0) lockCache.remove(pageId);
+    public void releaseAllLock(TransactionId tid){
+        HeldLocks held = txnLocks.remove(tid);
+        if (held == null) {
+            return;
+        }
+        List<Request> granted = new ArrayList<>();
+        for (Object resource : held.resources) {
+            LockState state = lockCache.get(resource);
+            if (state == null) {
+                continue;
+            }
+            synchronized (state) {
+                Lock l = state.holder(tid);
+                if (l == null) {
+                    continue;
                 }
-                break;
+                state.holders.remove(l);
+                granted.addAll(grantWaiters(resource, state));
             }
         }
+        signal(granted);
     }
 
     /**
-     * 判断是否持有锁
+     * 判断是否持有锁，持有能覆盖读的表锁也算
      * @param tid
      * @param pageId
      * @return
      */
-//    public synchronized Boolean holdsLock(TransactionId tid,PageId pageId){
-//        int pid = pageId.getPageNumber();
-//        List<Lock> locks = lockCache.get(pid);
-//        for(Lock l : locks) {
-//            if(l.getTransactionId().equals(tid)) {
-//                return true;
-//            }
-//        }
-//        return false;
-//    }
-    public synchronized Boolean holdsLock(TransactionId tid,PageId pageId){
-        List<Lock> locks = lockCache.get(pageId);
-        for(Lock l : locks) {
-            if(l.getTransactionId().equals(tid)) {
-                return true;
-            }
+    public Boolean holdsLock(TransactionId tid,PageId pageId){
+        HeldLocks held = txnLocks.get(tid);
+        if (held == null) {
+            return false;
         }
-        return false;
+        if (held.resources.contains(pageId)) {
+            return true;
+        }
+        LockMode tableMode = modeHeld(tid, new TableKey(pageId.getTableId()));
+        return tableMode != null && tableMode.covers(LockMode.S);
     }
 }
@@ -0,0 +1,74 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+
+/**
+ * Lock modes for multi-granularity locking. Tables are locked in any of the
+ * five modes; pages only in S or X, under an IS or IX lock on their table.
+ * <p>
+ * Modes are ordered by strength: IS &lt; IX, S &lt; SIX &lt; X, and a
+ * stronger mode grants everything a weaker one does.
+ */
+public enum LockMode {
+    /** Intention shared: the holder reads some pages of the table. */
+    IS,
+    /** Intention exclusive: the holder writes some pages of the table. */
+    IX,
+    /** Shared: the holder may read every page. */
+    S,
+    /** Shared with intention exclusive: S plus IX. */
+    SIX,
+    /** Exclusive: the holder may read and write every page. */
+    X;
+
+    // COMPATIBLE[a][b]：a和b能否被不同事务同时持有
+    private static final boolean[][] COMPATIBLE = {
+            //         IS     IX     S      SIX    X
+            /* IS  */ {true,  true,  true,  true,  false},
+            /* IX  */ {true,  true,  false, false, false},
+            /* S   */ {true,  false, true,  false, false},
+            /* SIX */ {true,  false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /** Return true if another transaction may hold other while this mode is held. */
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** Return true if holding this mode grants everything other grants. */
+    public boolean covers(LockMode other) {
+        switch (this) {
+            case IS:
+                return other == IS;
+            case IX:
+                return other == IS || other == IX;
+            case S:
+                return other == IS || other == S;
+            case SIX:
+                return other != X;
+            default:
+                return true;
+        }
+    }
+
+    /** The weakest mode that covers both this mode and other, used for upgrades. */
+    public LockMode combine(LockMode other) {
+        for (LockMode m : values()) {
+            if (m.covers(this) && m.covers(other)) {
+                return m;
+            }
+        }
+        return X;
+    }
+
+    /** The page lock mode for perm: S for reads, X for writes. */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /** The table lock mode to take before locking one of its pages with perm. */
+    public static LockMode intentionFor(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? IX : IS;
+    }
+}
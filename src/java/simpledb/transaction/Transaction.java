@@ -1,6 +1,7 @@
 package simpledb.transaction;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
 
 import java.io.*;
 
@@ -27,6 +28,17 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it reads heap pages as
+     * of the last commit before this call and never takes locks on them.
+     *
+     * @see simpledb.storage.BufferPool#beginSnapshot(TransactionId)
+     */
+    public void startSnapshot() throws DbException {
+        Database.getBufferPool().beginSnapshot(tid);
+        start();
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -0,0 +1,133 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.execution.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeFileBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile empty;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	@Test
+	public void testBulkLoadExternalSort() throws Exception {
+		// 每段只排两页的记录，要归并好几段；键的范围小，有很多重复的键
+		int rows = BTreeUtility.getNumTuplesPerPage(2) * 12 + 7;
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 200, null, tuples);
+		empty.bulkLoad(tid, hf.iterator(tid), 1.0, 2);
+
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(empty, tid, tuples);
+		DbFileIterator it = empty.iterator(tid);
+		it.open();
+		Field prev = null;
+		while(it.hasNext()) {
+			Field key = it.next().getField(0);
+			assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, key));
+			prev = key;
+		}
+		it.close();
+	}
+
+	@Test
+	public void testFillFactor() throws Exception {
+		int rows = BTreeUtility.getNumTuplesPerPage(2) * 10;
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+		empty.bulkLoad(tid, hf.iterator(tid), 1.0, 100);
+		// 文件创建时的空根页，加上十个满的叶子页和一个根
+		assertEquals(1 + 11, empty.numPages());
+
+		File halfFile = File.createTempFile("half", ".dat");
+		halfFile.deleteOnExit();
+		BTreeFile half = BTreeUtility.createEmptyBTreeFile(halfFile.getAbsolutePath(), 2, 0);
+		half.bulkLoad(tid, hf.iterator(tid), 0.5, 100);
+		assertEquals(1 + 21, half.numPages());
+		BTreeChecker.checkRep(half, tid, new HashMap<>(), true);
+	}
+
+	@Test
+	public void testNonEmptyTree() throws Exception {
+		empty.insertTuple(tid, BTreeUtility.getBTreeTuple(1, 2));
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		try {
+			empty.bulkLoad(tid, hf.iterator(tid), 1.0, 100);
+			fail("bulk load into a non-empty tree should fail");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCommitAndAbort() throws Exception {
+		int rows = BTreeUtility.getNumTuplesPerPage(2) * 5;
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+
+		// 回滚以后根指针恢复原样，树还是空的
+		Database.getBufferPool().bulkLoad(tid, empty.getId(), hf.iterator(tid), 0.8);
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(empty.getId()), Permissions.READ_ONLY);
+		assertNull(rootPtr.getRootId());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		Database.getBufferPool().bulkLoad(tid, empty.getId(), hf.iterator(tid), 0.8);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		SystemTestUtil.matchTuples(empty, tid, tuples);
+
+		// 装好的树可以照常查找和插入
+		List<Integer> first = tuples.get(0);
+		DbFileIterator it = empty.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(first.get(0))));
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(first.get(0), SystemTestUtil.tupleToList(it.next()).get(0));
+		it.close();
+		Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(-1, 2));
+		BTreeChecker.checkRep(empty, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeFileBulkLoadTest.class);
+	}
+}
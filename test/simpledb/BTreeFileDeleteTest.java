@@ -1,6 +1,9 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -31,6 +34,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 	@After
 	public void tearDown() {
 		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
 	}
 
 	/**
@@ -374,6 +378,89 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}    
 
+	private int countInternalPages(BTreeFile bf, BTreePageId pid) throws Exception {
+		if(pid.pgcateg() != BTreePageId.INTERNAL) {
+			return 0;
+		}
+		BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		int count = 1 + countInternalPages(bf, page.iterator().next().getLeftChild());
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			count += countInternalPages(bf, it.next().getRightChild());
+		}
+		return count;
+	}
+
+	private int countInternalPages(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return countInternalPages(bf, rootPtr.getRootId());
+	}
+
+	private void deleteKey(BTreeFile bf, String key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new StringField(key, Type.STRING_LEN)));
+		it.open();
+		assertTrue(it.hasNext());
+		Tuple t = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(tid, t);
+	}
+
+	@Test
+	public void testCompactStringKeys() throws Exception {
+		// 小页面让树有三层，删除时中间一层的压缩内部页会互相借entry、合并
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}));
+		Database.getCatalog().addTable(bf);
+
+		int rows = 3000;
+		List<String> keys = new ArrayList<>();
+		for(int i = 0; i < rows; i++) {
+			keys.add(String.format("https://www.example.com/customers/%06d/orders/%06d", (i * 7919) % rows, i));
+		}
+		for(String key : keys) {
+			Tuple t = new Tuple(bf.getTupleDesc());
+			t.setField(0, new StringField(key, Type.STRING_LEN));
+			t.setField(1, new IntField(key.hashCode()));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		int internalPages = countInternalPages(bf);
+		assertTrue(internalPages > 2);
+
+		// 从最小的key往上删，从最大的key往下删，再随机删，几乎删空
+		Collections.sort(keys);
+		List<String> order = new ArrayList<>(keys.subList(0, rows / 3));
+		List<String> fromEnd = new ArrayList<>(keys.subList(2 * rows / 3, rows));
+		Collections.reverse(fromEnd);
+		order.addAll(fromEnd);
+		List<String> middle = new ArrayList<>(keys.subList(rows / 3, 2 * rows / 3));
+		Collections.shuffle(middle, new Random(6830));
+		order.addAll(middle.subList(0, middle.size() - 20));
+		List<String> remaining = new ArrayList<>(middle.subList(middle.size() - 20, middle.size()));
+		for(int i = 0; i < order.size(); i++) {
+			deleteKey(bf, order.get(i));
+			if(i % 100 == 0) {
+				BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		assertTrue(countInternalPages(bf) < internalPages);
+
+		// 剩下的key都还在，并且按顺序
+		Collections.sort(remaining);
+		DbFileIterator scan = bf.iterator(tid);
+		scan.open();
+		for(String key : remaining) {
+			assertEquals(key, ((StringField) scan.next().getField(0)).getValue());
+		}
+		assertFalse(scan.hasNext());
+		scan.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
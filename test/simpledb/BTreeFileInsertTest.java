@@ -1,6 +1,9 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -8,6 +11,7 @@ import simpledb.execution.Predicate.Op;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -176,6 +180,165 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testInsertLatchesInternalPages() throws Exception {
+		// 十个满的叶子页加上一个只有一条记录的叶子页，根是内部节点
+		int rows = BTreeUtility.getNumTuplesPerPage(2) * 10 + 1;
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		Database.getBufferPool().unsafeReleasePage(tid, rootPtr.getId());
+
+		// 插入最后一个叶子页，不会分裂，所以只有叶子页还锁着
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + 1, 2);
+		bf.insertTuple(tid, t);
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtr.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		assertTrue(Database.getBufferPool().holdsLock(tid, t.getRecordId().getPageId()));
+	}
+
+	/**
+	 * Returns the ids of the pages on the path from the root pointer page down to the
+	 * left-most leaf page, read in a transaction of its own.
+	 */
+	private static List<PageId> leftmostPath(BTreeFile bf) throws Exception {
+		TransactionId reader = new TransactionId();
+		List<PageId> path = new ArrayList<>();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				reader, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		path.add(rootPtr.getId());
+		BTreePageId pid = rootPtr.getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			path.add(pid);
+			BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+			pid = p.iterator().next().getLeftChild();
+		}
+		path.add(pid);
+		Database.getBufferPool().transactionComplete(reader);
+		return path;
+	}
+
+	@Test
+	public void testSplitLatchesOnlyReachableAncestors() throws Exception {
+		// 小页面让树有三层：根、内部页、叶子页
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		int rows = BTreeUtility.getNumTuplesPerPage(2) * (BTreeUtility.getNumEntriesPerPage() + 1) * 2;
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+		assertEquals(4, leftmostPath(bf).size());
+
+		// 最左边的叶子页先分裂一次，让它的父节点有空位，再把它重新填满
+		int key = -1;
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key--, 2));
+		Database.getBufferPool().transactionComplete(tid);
+		List<PageId> path = leftmostPath(bf);
+		PageId rootId = path.get(1);
+		PageId parentId = path.get(2);
+		PageId leafId = path.get(3);
+		tid = new TransactionId();
+		while(((BTreeLeafPage) Database.getBufferPool().getPage(tid, leafId, Permissions.READ_ONLY)).getNumEmptySlots() > 0) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key--, 2));
+		}
+		assertTrue(((BTreeInternalPage) Database.getBufferPool().getPage(tid, parentId, Permissions.READ_ONLY)).getNumEmptySlots() > 0);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// 叶子页满了，重新从根往下走：父节点还有空位，分裂到它为止，根放开了。
+		// 根指针页在往下走的时候也放开了，只是分配新页时要通过它找header页，又加了一次共享锁
+		Tuple t = BTreeUtility.getBTreeTuple(key, 2);
+		bf.insertTuple(tid, t);
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		assertTrue(Database.getBufferPool().holdsLock(tid, parentId));
+		assertTrue(Database.getBufferPool().holdsLock(tid, leafId));
+		assertTrue(Database.getBufferPool().holdsLock(tid, t.getRecordId().getPageId()));
+	}
+
+	@Test
+	public void testInsertsIntoDifferentLeavesDoNotWaitOnRoot() throws Exception {
+		int rows = BTreeUtility.getNumTuplesPerPage(2) * 10 + 1;
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+
+		// 这个事务往最后一个叶子页插入以后一直不提交
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + 1, 2);
+		Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+
+		// 另一个事务往第一个叶子页插入，还要让它分裂；根要是还被锁着，它只能一直等
+		BTreeUtility.BTreeInserter inserter = new BTreeUtility.BTreeInserter(bf, new int[]{-1, -1},
+				new LinkedBlockingQueue<>());
+		inserter.start();
+		inserter.join(10000);
+		assertTrue(inserter.succeeded());
+		assertTrue(Database.getBufferPool().holdsLock(tid, t.getRecordId().getPageId()));
+	}
+
+	@Test
+	public void testCompactStringKeys() throws Exception {
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		Database.reset();
+		BTreeFile bf = new BTreeFile(f, 0, new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}));
+		Database.getCatalog().addTable(bf);
+
+		// 长而且前缀相同的key：固定宽度的内部页只能放下getMaxEntries()个entry
+		int rows = 3000;
+		List<String> keys = new ArrayList<>();
+		for(int i = 0; i < rows; i++) {
+			keys.add(String.format("https://www.example.com/customers/%06d/orders/%06d", (i * 7919) % rows, i));
+		}
+		for(String key : keys) {
+			Tuple t = new Tuple(bf.getTupleDesc());
+			t.setField(0, new StringField(key, Type.STRING_LEN));
+			t.setField(1, new IntField(key.hashCode()));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+
+		// 根是内部页，分隔键被截短、前缀压缩后，放下的entry比按最长的key算的多
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(root.getNumEntries() > root.getMaxEntries());
+		Iterator<BTreeEntry> it = root.iterator();
+		while(it.hasNext()) {
+			assertTrue(((StringField) it.next().getKey()).getValue().length() < keys.get(0).length());
+		}
+
+		// 压缩格式读回来和原来一样
+		BTreeInternalPage copy = new BTreeInternalPage(root.getId(), root.getPageData(), 0);
+		Iterator<BTreeEntry> expected = root.iterator();
+		Iterator<BTreeEntry> actual = copy.iterator();
+		while(expected.hasNext()) {
+			BTreeEntry e = expected.next();
+			BTreeEntry a = actual.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getLeftChild(), a.getLeftChild());
+			assertEquals(e.getRightChild(), a.getRightChild());
+		}
+		assertFalse(actual.hasNext());
+
+		// 每个key都查得到
+		Collections.sort(keys);
+		DbFileIterator scan = bf.iterator(tid);
+		scan.open();
+		for(String key : keys) {
+			assertEquals(key, ((StringField) scan.next().getField(0)).getValue());
+		}
+		assertFalse(scan.hasNext());
+		scan.close();
+		for(int i = 0; i < rows; i += 97) {
+			DbFileIterator search = bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, new StringField(keys.get(i), Type.STRING_LEN)));
+			search.open();
+			assertTrue(search.hasNext());
+			assertEquals(keys.get(i), ((StringField) search.next().getField(0)).getValue());
+			search.close();
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -113,6 +113,37 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		it.close();
 	}
 
+	/**
+	 * A scan with read-ahead turned on returns every tuple, and leaves are
+	 * read ahead of it along the right sibling pointers.
+	 */
+	@Test
+	public void testIteratorPrefetch() throws Exception {
+		BTreeFile manyLeafFile = BTreeUtility.createRandomBTreeFile(2, 5000,
+				null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		bp.setPrefetchWindow(4);
+		try {
+			DbFileIterator it = manyLeafFile.iterator(tid);
+			it.open();
+			int count = 0;
+			while (it.hasNext()) {
+				assertNotNull(it.next());
+				count += 1;
+			}
+			assertEquals(5000, count);
+			it.close();
+
+			// read-ahead is asynchronous; give it a moment to finish
+			for (int i = 0; i < 100 && bp.getEvictionStats().getPrefetches() == 0; i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(bp.getEvictionStats().getPrefetches() > 0);
+		} finally {
+			bp.setPrefetchWindow(0);
+		}
+	}
+
 	@Test
 	public void testIteratorClose() throws Exception {
 		// make more than 1 page. Previous closed iterator would start fetching
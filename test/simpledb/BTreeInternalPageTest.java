@@ -8,6 +8,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -321,6 +322,38 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+
+		// leave some empty slots between the entries
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		page.deleteKeyAndRightChild(entries.get(3));
+		page.deleteKeyAndRightChild(entries.get(11));
+		entries.clear();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+		for (int key = 0; key < 70000; key += 997) {
+			// the left child of the first entry with a key >= key, as a linear search finds it
+			BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+			for (BTreeEntry e : entries) {
+				if (e.getKey().compare(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(key))) {
+					expected = e.getLeftChild();
+					break;
+				}
+			}
+			assertEquals(expected, page.findChild(new IntField(key)));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
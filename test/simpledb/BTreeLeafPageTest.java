@@ -7,6 +7,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -196,6 +197,31 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.lowerBound()
+	 */
+	@Test public void lowerBound() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		// leave some empty slots between the tuples
+		List<Tuple> tuples = new ArrayList<>();
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext())
+			tuples.add(it.next());
+		page.deleteTuple(tuples.remove(4));
+		page.deleteTuple(tuples.remove(11));
+
+		for (int key = 0; key < 70000; key += 997) {
+			IntField f = new IntField(key);
+			Iterator<Tuple> from = page.iterator(page.lowerBound(f));
+			for (Tuple t : tuples) {
+				if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+					assertEquals(t.getField(0), from.next().getField(0));
+			}
+			assertFalse(from.hasNext());
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
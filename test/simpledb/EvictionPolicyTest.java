@@ -0,0 +1,146 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.EvictionPolicy;
+import simpledb.storage.EvictionStats;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final int CAPACITY = 8;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /** Evict one page the way BufferPool does: ask for a victim, then remove it. */
+    private static PageId evict(EvictionPolicy policy) {
+        PageId victim = policy.chooseVictim(p -> true);
+        assertNotNull(victim);
+        policy.pageRemoved(victim);
+        return victim;
+    }
+
+    /**
+     * Every policy returns no victim when it tracks no page, and a victim that
+     * it actually tracks otherwise.
+     */
+    @Test public void victimIsTracked() {
+        for (ReplacementPolicy rp : ReplacementPolicy.values()) {
+            EvictionPolicy policy = rp.newPolicy(CAPACITY);
+            assertNull(rp.toString(), policy.chooseVictim(p -> true));
+            Set<PageId> resident = new HashSet<>();
+            for (int i = 0; i < CAPACITY; i++) {
+                policy.pageAdmitted(pid(i));
+                resident.add(pid(i));
+            }
+            for (int i = 0; i < CAPACITY; i++) {
+                PageId victim = evict(policy);
+                assertTrue(rp.toString(), resident.remove(victim));
+            }
+            assertNull(rp.toString(), policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * Pages rejected by the evictable predicate (dirty pages) are never chosen,
+     * and are counted as dirty skips.
+     */
+    @Test public void skipsDirtyPages() {
+        for (ReplacementPolicy rp : ReplacementPolicy.values()) {
+            EvictionPolicy policy = rp.newPolicy(CAPACITY);
+            for (int i = 0; i < CAPACITY; i++) {
+                policy.pageAdmitted(pid(i));
+            }
+            // 只有最后一页是干净的
+            PageId victim = policy.chooseVictim(p -> p.equals(pid(CAPACITY - 1)));
+            assertEquals(rp.toString(), pid(CAPACITY - 1), victim);
+            EvictionStats stats = policy.getStats();
+            assertTrue(rp.toString(), stats.getDirtySkips() > 0);
+            assertTrue(rp.toString(), stats.getScanLength() >= stats.getDirtySkips());
+
+            assertNull(rp.toString(), policy.chooseVictim(p -> false));
+        }
+    }
+
+    /**
+     * LRU evicts the least recently used page.
+     */
+    @Test public void lruOrder() {
+        EvictionPolicy policy = ReplacementPolicy.LRU.newPolicy(CAPACITY);
+        for (int i = 0; i < 3; i++) {
+            policy.pageAdmitted(pid(i));
+        }
+        policy.pageHit(pid(0));
+        assertEquals(pid(1), evict(policy));
+        assertEquals(pid(2), evict(policy));
+        assertEquals(pid(0), evict(policy));
+    }
+
+    /**
+     * Pages that are referenced again must survive a stream of pages that are
+     * only touched once, under every scan resistant policy.
+     */
+    @Test public void scanResistance() {
+        for (ReplacementPolicy rp : new ReplacementPolicy[] {
+                ReplacementPolicy.LRU_K, ReplacementPolicy.ARC, ReplacementPolicy.CLOCK}) {
+            EvictionPolicy policy = rp.newPolicy(CAPACITY);
+            for (int i = 0; i < CAPACITY; i++) {
+                policy.pageAdmitted(pid(i));
+            }
+            // pages 0..3 are hot
+            for (int i = 0; i < 4; i++) {
+                policy.pageHit(pid(i));
+            }
+
+            // scan 100 pages that are only touched once
+            for (int i = 100; i < 200; i++) {
+                PageId victim = evict(policy);
+                assertTrue(rp + " evicted referenced page " + victim, victim.getPageNumber() >= 4);
+                policy.pageAdmitted(pid(i));
+                for (int j = 0; j < 4; j++) {
+                    policy.pageHit(pid(j));
+                }
+            }
+        }
+    }
+
+    /**
+     * A page that misses again shortly after being evicted outlives pages
+     * touched only once.
+     */
+    @Test public void reReferencedPageIsKept() {
+        for (ReplacementPolicy rp : new ReplacementPolicy[] {
+                ReplacementPolicy.LRU_K, ReplacementPolicy.ARC, ReplacementPolicy.CLOCK}) {
+            EvictionPolicy policy = rp.newPolicy(CAPACITY);
+            for (int i = 0; i < CAPACITY; i++) {
+                policy.pageAdmitted(pid(i));
+            }
+            PageId victim = evict(policy);
+            policy.pageAdmitted(victim);
+
+            for (int i = 100; i < 120; i++) {
+                assertNotEquals(rp.toString(), victim, evict(policy));
+                policy.pageAdmitted(pid(i));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
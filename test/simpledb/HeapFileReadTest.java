@@ -89,6 +89,66 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A read by an interrupted thread closes the shared FileChannel; the file
+     * must reopen it rather than fail every later read and write.
+     */
+    @Test
+    public void readPageAfterInterrupt() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        } finally {
+            // 中断标记要保留给调用者
+            assertTrue(Thread.interrupted());
+        }
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        hf.writePage(page);
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() with the memory mapped read path
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapFile twoPageFile = SystemTestUtil.createRandomHeapFile(2, 520,
+                null, null);
+        twoPageFile.setMemoryMapped(true);
+        for (int i = 0; i < twoPageFile.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(twoPageFile.getId(), i);
+            HeapPage mapped = (HeapPage) twoPageFile.readPage(pid);
+            twoPageFile.setMemoryMapped(false);
+            HeapPage read = (HeapPage) twoPageFile.readPage(pid);
+            twoPageFile.setMemoryMapped(true);
+
+            assertArrayEquals(read.getPageData(), mapped.getPageData());
+            assertArrayEquals(read.getBeforeImage().getPageData(),
+                    mapped.getBeforeImage().getPageData());
+        }
+
+        // pages written after the file was mapped are seen by mapped reads
+        HeapPageId pid = new HeapPageId(twoPageFile.getId(), 0);
+        HeapPage page = (HeapPage) twoPageFile.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        twoPageFile.writePage(page);
+        assertEquals(page.getNumEmptySlots(),
+                ((HeapPage) twoPageFile.readPage(pid)).getNumEmptySlots());
+
+        // a mapped page keeps its before image once it is modified and
+        // written back over the mapped bytes
+        HeapPageId pid1 = new HeapPageId(twoPageFile.getId(), 1);
+        HeapPage mapped = (HeapPage) twoPageFile.readPage(pid1);
+        byte[] original = mapped.getPageData();
+        mapped.deleteTuple(mapped.iterator().next());
+        mapped.markDirty(true, tid);
+        twoPageFile.writePage(mapped);
+        assertArrayEquals(original, mapped.getBeforeImage().getPageData());
+        assertArrayEquals(mapped.getPageData(),
+                twoPageFile.readPage(pid1).getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 1000, null,
@@ -113,6 +173,72 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A scan with read-ahead turned on returns every tuple, and pages are read
+     * ahead of it.
+     */
+    @Test
+    public void testIteratorPrefetch() throws Exception {
+        HeapFile tenPageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 10,
+                null, null);
+        BufferPool bp = Database.getBufferPool();
+        bp.setPrefetchWindow(4);
+        try {
+            DbFileIterator it = tenPageFile.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                assertNotNull(it.next());
+                count += 1;
+            }
+            assertEquals(504 * 10, count);
+            it.close();
+
+            // read-ahead is asynchronous; give it a moment to finish
+            for (int i = 0; i < 100 && bp.getEvictionStats().getPrefetches() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(bp.getEvictionStats().getPrefetches() > 0);
+        } finally {
+            bp.setPrefetchWindow(0);
+        }
+    }
+
+    /**
+     * Read-ahead into a small pool must not drop a committed page that has not
+     * been written back yet (NO-FORCE).
+     */
+    @Test
+    public void testPrefetchKeepsCommittedPages() throws Exception {
+        HeapFile tenPageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 10,
+                null, null);
+        BufferPool bp = Database.resetBufferPool(6);
+        TransactionId writer = new TransactionId();
+        DbFileIterator it = tenPageFile.iterator(writer);
+        it.open();
+        bp.deleteTuple(writer, it.next());
+        it.close();
+        bp.transactionComplete(writer);
+
+        bp.setPrefetchWindow(4);
+        try {
+            // 第一遍扫描的预读会把缓冲池里的页换出去，第二遍还要看到提交过的删除
+            for (int pass = 0; pass < 2; pass++) {
+                it = tenPageFile.iterator(tid);
+                it.open();
+                int count = 0;
+                while (it.hasNext()) {
+                    it.next();
+                    count += 1;
+                }
+                it.close();
+                assertEquals(504 * 10 - 1, count);
+            }
+        } finally {
+            bp.setPrefetchWindow(0);
+        }
+    }
+
     @Test
     public void testIteratorClose() throws Exception {
         // make more than 1 page. Previous closed iterator would start fetching
@@ -90,6 +90,71 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts use the free space map to skip full pages: they neither lock
+     * nor read them, and the map survives reopening the file.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
+                null);
+        int tableId = smallFile.getId();
+        int numTuples = (BufferPool.getPageSize()*8) / (8 * 8 + 1);
+        int headerSize = (int) Math.ceil(numTuples / 8.0);
+        byte[] full = new byte[numTuples * 8 + headerSize];
+        Arrays.fill(full, (byte) 0xFFFFFFFF);
+        for (int i = 0; i < 3; i++) {
+            smallFile.writePage(new HeapPage(new HeapPageId(tableId, i), full));
+        }
+        smallFile.writePage(new HeapPage(new HeapPageId(tableId, 3),
+                HeapPage.createEmptyPageData()));
+
+        smallFile.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(4, smallFile.numPages());
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 3; i++) {
+            assertFalse(bp.holdsLock(tid, new HeapPageId(tableId, i)));
+        }
+        assertTrue(bp.holdsLock(tid, new HeapPageId(tableId, 3)));
+
+        FreeSpaceMap reopened = new FreeSpaceMap(smallFile.getFile());
+        assertTrue(reopened.isFull(0));
+        assertTrue(reopened.isFull(2));
+        assertFalse(reopened.isFull(3));
+        assertEquals(3, reopened.nextCandidate(0, 4));
+        reopened.close();
+    }
+
+    /**
+     * An aborted insert that filled a page does not leave the page marked
+     * full: later inserts use its free slot again.
+     */
+    @Test public void abortedInsertUnmarksFullPage() throws Exception {
+        HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
+                null);
+        int tableId = smallFile.getId();
+        int numTuples = (BufferPool.getPageSize()*8) / (8 * 8 + 1);
+        int headerSize = (int) Math.ceil(numTuples / 8.0);
+        byte[] almostFull = new byte[numTuples * 8 + headerSize];
+        Arrays.fill(almostFull, (byte) 0xFFFFFFFF);
+        // 最后一个槽位空着
+        almostFull[(numTuples - 1) / 8] &= ~(1 << ((numTuples - 1) % 8));
+        smallFile.writePage(new HeapPage(new HeapPageId(tableId, 0), almostFull));
+
+        BufferPool bp = Database.getBufferPool();
+        bp.insertTuple(tid, tableId, Utility.getHeapTuple(7, 2));
+        FreeSpaceMap map = new FreeSpaceMap(smallFile.getFile());
+        assertTrue(map.isFull(0));
+        map.close();
+        bp.transactionComplete(tid, false);
+
+        map = new FreeSpaceMap(smallFile.getFile());
+        assertFalse(map.isFull(0));
+        map.close();
+        tid = new TransactionId();
+        bp.insertTuple(tid, tableId, Utility.getHeapTuple(8, 2));
+        assertEquals(1, smallFile.numPages());
+    }
+
     /**
      * JUnit suite target
      */
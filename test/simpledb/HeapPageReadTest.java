@@ -2,7 +2,9 @@ package simpledb;
 
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -13,6 +15,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -124,6 +127,69 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getPageData(): encoding a page that was just
+     * decoded gives back the same bytes, including the string fields.
+     */
+    @Test public void getPageDataRoundTrip() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+
+        TupleDesc td = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.STRING_TYPE });
+        HeapPageId strPid = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPage strPage = new HeapPage(strPid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 5; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("row" + i, Type.STRING_LEN));
+            strPage.insertTuple(t);
+        }
+        byte[] data = strPage.getPageData();
+        HeapPage decoded = new HeapPage(strPid, data);
+        assertArrayEquals(data, decoded.getPageData());
+        Iterator<Tuple> it = decoded.iterator();
+        for (int i = 0; i < 5; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new StringField("row" + i, Type.STRING_LEN), t.getField(1));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for HeapPage.getField() and HeapPage.iterator(Predicate):
+     * single fields are read from the page data, and only the tuples that
+     * pass the predicate are returned.
+     */
+    @Test public void lazyFieldAccess() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+        }
+        assertEquals(null, page.getField(20, 0));
+
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(20000));
+        Iterator<Tuple> it = page.iterator(p);
+        int count = 0;
+        for (int[] tup : EXAMPLE_VALUES) {
+            if (tup[0] >= 20000) {
+                continue;
+            }
+            assertTrue(it.hasNext());
+            Tuple t = it.next();
+            assertEquals(new IntField(tup[0]), t.getField(0));
+            assertEquals(new IntField(tup[1]), t.getField(1));
+            count++;
+        }
+        assertFalse(it.hasNext());
+        assertEquals(7, count);
+
+        // decoded tuples are cached, so the page hands out the same object
+        Tuple first = page.getTuple(0);
+        assertTrue(first == page.iterator().next());
+    }
+
     /**
      * JUnit suite target
      */
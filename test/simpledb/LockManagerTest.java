@@ -0,0 +1,267 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.DeadlockVictimPolicy;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.TransactionId;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    /** Long enough that a waiter never times out while the test runs. */
+    private static final long WAIT = 10000;
+    /** Time to give a waiter to block before checking that it is blocked, in ms */
+    private static final long SETTLE = 100;
+
+    private LockManager lm;
+    private PageId pid;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        pid = new HeapPageId(0, 0);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    private CompletableFuture<Boolean> acquireAsync(TransactionId tid, Permissions perm) {
+        return CompletableFuture.supplyAsync(() -> lm.acquireLock(tid, pid, perm, WAIT));
+    }
+
+    /**
+     * A blocked request is granted as soon as the conflicting lock is
+     * released, not when a timeout expires.
+     */
+    @Test public void waiterIsWokenOnRelease() throws Exception {
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_WRITE));
+        CompletableFuture<Boolean> waiter = acquireAsync(tid2, Permissions.READ_ONLY);
+        Thread.sleep(SETTLE);
+        assertFalse(waiter.isDone());
+
+        lm.releaseLock(tid1, pid);
+        assertTrue(waiter.get(1, TimeUnit.SECONDS));
+        assertTrue(lm.holdsLock(tid2, pid));
+    }
+
+    /**
+     * A reader that arrives after a waiting writer queues behind it.
+     */
+    @Test public void writerIsNotStarved() throws Exception {
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_ONLY));
+        CompletableFuture<Boolean> writer = acquireAsync(tid2, Permissions.READ_WRITE);
+        Thread.sleep(SETTLE);
+        assertFalse(lm.acquireLock(tid3, pid, Permissions.READ_ONLY));
+        CompletableFuture<Boolean> reader = acquireAsync(tid3, Permissions.READ_ONLY);
+
+        lm.releaseLock(tid1, pid);
+        assertTrue(writer.get(1, TimeUnit.SECONDS));
+        Thread.sleep(SETTLE);
+        assertFalse(reader.isDone());
+
+        lm.releaseAllLock(tid2);
+        assertTrue(reader.get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A request that times out leaves the queue, so it does not hold up the
+     * requests behind it.
+     */
+    @Test public void timedOutRequestLeavesQueue() throws Exception {
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_ONLY));
+        assertFalse(lm.acquireLock(tid2, pid, Permissions.READ_WRITE, SETTLE));
+        assertFalse(lm.holdsLock(tid2, pid));
+        assertTrue(lm.acquireLock(tid3, pid, Permissions.READ_ONLY));
+    }
+
+    /**
+     * A shared holder upgrading its lock waits only for the other readers.
+     */
+    @Test public void upgradeWaitsForOtherReaders() throws Exception {
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_ONLY));
+        assertTrue(lm.acquireLock(tid2, pid, Permissions.READ_ONLY));
+        CompletableFuture<Boolean> upgrade = acquireAsync(tid1, Permissions.READ_WRITE);
+        Thread.sleep(SETTLE);
+        assertFalse(upgrade.isDone());
+
+        lm.releaseLock(tid2, pid);
+        assertTrue(upgrade.get(1, TimeUnit.SECONDS));
+        assertFalse(lm.acquireLock(tid2, pid, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Two transactions waiting for each other's page: the request that
+     * closes the cycle finds it, and only the youngest transaction fails.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        PageId pid2 = new HeapPageId(0, 1);
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_WRITE));
+        assertTrue(lm.acquireLock(tid2, pid2, Permissions.READ_WRITE));
+        CompletableFuture<Boolean> older = CompletableFuture.supplyAsync(
+                () -> lm.acquireLock(tid1, pid2, Permissions.READ_WRITE, LockManager.WAIT_FOREVER));
+        Thread.sleep(SETTLE);
+        assertFalse(older.isDone());
+
+        // tid2 is younger, so its request is the one that fails, right away
+        long start = System.currentTimeMillis();
+        assertFalse(lm.acquireLock(tid2, pid, Permissions.READ_WRITE, LockManager.WAIT_FOREVER));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertFalse(older.isDone());
+
+        lm.releaseAllLock(tid2);
+        assertTrue(older.get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * With FEWEST_LOCKS the victim is the transaction holding fewer locks,
+     * even when it is the one already waiting.
+     */
+    @Test public void deadlockAbortsFewestLocks() throws Exception {
+        lm.setVictimPolicy(DeadlockVictimPolicy.FEWEST_LOCKS);
+        PageId pid2 = new HeapPageId(0, 1);
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_WRITE));
+        assertTrue(lm.acquireLock(tid2, pid2, Permissions.READ_WRITE));
+        assertTrue(lm.acquireLock(tid2, new HeapPageId(0, 2), Permissions.READ_WRITE));
+        CompletableFuture<Boolean> waiter = CompletableFuture.supplyAsync(
+                () -> lm.acquireLock(tid1, pid2, Permissions.READ_WRITE, LockManager.WAIT_FOREVER));
+        Thread.sleep(SETTLE);
+
+        CompletableFuture<Boolean> closer = CompletableFuture.supplyAsync(
+                () -> lm.acquireLock(tid2, pid, Permissions.READ_WRITE, LockManager.WAIT_FOREVER));
+        assertFalse(waiter.get(1, TimeUnit.SECONDS));
+        lm.releaseAllLock(tid1);
+        assertTrue(closer.get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * releaseAllLock releases every lock of the transaction, and only its
+     * locks.
+     */
+    @Test public void releaseAllLockReleasesOnlyOwnLocks() throws Exception {
+        PageId pid2 = new HeapPageId(0, 1);
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_ONLY));
+        assertTrue(lm.acquireLock(tid1, pid2, Permissions.READ_WRITE));
+        assertTrue(lm.acquireLock(tid2, pid, Permissions.READ_ONLY));
+
+        lm.releaseAllLock(tid1);
+        assertFalse(lm.holdsLock(tid1, pid));
+        assertFalse(lm.holdsLock(tid1, pid2));
+        assertTrue(lm.holdsLock(tid2, pid));
+        assertTrue(lm.acquireLock(tid3, pid2, Permissions.READ_WRITE));
+        assertFalse(lm.acquireLock(tid3, pid, Permissions.READ_WRITE));
+    }
+
+    /**
+     * Many transactions locking and releasing their own pages and a shared
+     * page at the same time all get their locks.
+     */
+    @Test public void concurrentTransactions() throws Exception {
+        final int threads = 8;
+        final int rounds = 200;
+        PageId shared = new HeapPageId(1, 0);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int table = t + 2;
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                for (int i = 0; i < rounds; i++) {
+                    TransactionId tid = new TransactionId();
+                    for (int p = 0; p < 4; p++) {
+                        if (!lm.acquireLock(tid, new HeapPageId(table, p), Permissions.READ_WRITE, WAIT)) {
+                            return false;
+                        }
+                    }
+                    if (!lm.acquireLock(tid, shared, Permissions.READ_ONLY, WAIT)
+                            || !lm.holdsLock(tid, new HeapPageId(table, 3))) {
+                        return false;
+                    }
+                    lm.releaseAllLock(tid);
+                    if (lm.holdsLock(tid, shared)) {
+                        return false;
+                    }
+                }
+                return true;
+            }));
+        }
+        for (CompletableFuture<Boolean> f : futures) {
+            assertTrue(f.get(WAIT, TimeUnit.MILLISECONDS));
+        }
+        assertTrue(lm.acquireLock(tid1, shared, Permissions.READ_WRITE));
+    }
+
+    /**
+     * Page locks take intention locks on their table, so writers of
+     * different pages do not conflict but a shared table lock waits for them.
+     */
+    @Test public void intentionLocksOnTable() throws Exception {
+        PageId pid2 = new HeapPageId(0, 1);
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_WRITE));
+        assertTrue(lm.acquireLock(tid2, pid2, Permissions.READ_WRITE));
+        assertEquals(LockMode.IX, lm.getTableLockMode(tid1, 0));
+        assertFalse(lm.acquireTableLock(tid3, 0, LockMode.S, 0));
+        assertTrue(lm.acquireTableLock(tid3, 0, LockMode.IS, 0));
+
+        lm.releaseAllLock(tid1);
+        lm.releaseAllLock(tid2);
+        assertTrue(lm.acquireTableLock(tid3, 0, LockMode.S, 0));
+        assertTrue(lm.holdsLock(tid3, pid2));
+        assertFalse(lm.acquireLock(tid1, pid, Permissions.READ_WRITE));
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_ONLY));
+    }
+
+    /**
+     * A shared table lock plus a page write upgrades the table lock to SIX.
+     */
+    @Test public void sharedTableLockUpgradesToSix() throws Exception {
+        assertTrue(lm.acquireTableLock(tid1, 0, LockMode.S, 0));
+        assertTrue(lm.acquireLock(tid1, pid, Permissions.READ_WRITE));
+        assertEquals(LockMode.SIX, lm.getTableLockMode(tid1, 0));
+        assertTrue(lm.acquireTableLock(tid2, 0, LockMode.IS, 0));
+        assertFalse(lm.acquireLock(tid2, pid, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Past the threshold, page locks are traded for one table lock.
+     */
+    @Test public void pageLocksEscalateToTableLock() throws Exception {
+        lm.setEscalationThreshold(3);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lm.acquireLock(tid1, new HeapPageId(0, i), Permissions.READ_ONLY));
+        }
+        assertEquals(LockMode.S, lm.getTableLockMode(tid1, 0));
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(0, 10)));
+        assertFalse(lm.acquireLock(tid2, new HeapPageId(0, 10), Permissions.READ_WRITE));
+
+        // 有别的事务持有意向锁时不能升级，继续用页锁
+        assertTrue(lm.acquireLock(tid3, new HeapPageId(1, 0), Permissions.READ_WRITE));
+        for (int i = 1; i < 5; i++) {
+            assertTrue(lm.acquireLock(tid2, new HeapPageId(1, i), Permissions.READ_WRITE));
+        }
+        assertEquals(LockMode.IX, lm.getTableLockMode(tid2, 1));
+        lm.releaseAllLock(tid3);
+        assertTrue(lm.acquireLock(tid2, new HeapPageId(1, 5), Permissions.READ_WRITE));
+        assertEquals(LockMode.X, lm.getTableLockMode(tid2, 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,256 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private static final int ROWS = 20000;
+	private static final int MAX_VALUE = 5000;
+
+	private TransactionId tid;
+	private HeapFile hf;
+	private List<List<Integer>> tuples;
+	private SecondaryIndex index;
+
+	/**
+	 * Set up a heap table of two columns with an index on the second one.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+		File indexFile = File.createTempFile("index", ".idx");
+		indexFile.deleteOnExit();
+		BTreeFile bf = new BTreeFile(indexFile, 0, SecondaryIndex.indexTupleDesc(hf.getTupleDesc(), 1));
+		index = new SecondaryIndex("c1_index", hf.getId(), 1, bf);
+		Database.getCatalog().addIndex(index);
+
+		tid = new TransactionId();
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), index.tableEntries(tid), 1.0);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	private List<List<Integer>> scan(IndexPredicate ipred) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		IndexScan scan = new IndexScan(tid, index, ipred);
+		scan.open();
+		while(scan.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(scan.next()));
+		}
+		scan.close();
+		return result;
+	}
+
+	private List<List<Integer>> expected(Op op, int value) {
+		List<List<Integer>> result = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			if(new IntField(t.get(1)).compare(op, new IntField(value))) {
+				result.add(t);
+			}
+		}
+		return result;
+	}
+
+	private static <T> List<T> sorted(List<T> l, Comparator<T> c) {
+		List<T> copy = new ArrayList<>(l);
+		copy.sort(c);
+		return copy;
+	}
+
+	@Test
+	public void testPointAndRangeScan() throws Exception {
+		Comparator<List<Integer>> order = Comparator.<List<Integer>>comparingInt(t -> t.get(1)).thenComparingInt(t -> t.get(0));
+		int value = tuples.get(0).get(1);
+		assertEquals(sorted(expected(Op.EQUALS, value), order), sorted(scan(new IndexPredicate(Op.EQUALS, new IntField(value))), order));
+
+		// 范围查询按键的顺序返回
+		List<List<Integer>> range = scan(new IndexPredicate(Op.LESS_THAN, new IntField(100)));
+		assertEquals(sorted(expected(Op.LESS_THAN, 100), order), sorted(range, order));
+		for(int i = 1; i < range.size(); i++) {
+			assertTrue(range.get(i - 1).get(1) <= range.get(i).get(1));
+		}
+		assertEquals(ROWS, scan(null).size());
+	}
+
+	@Test
+	public void testInsertAndDelete() throws Exception {
+		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{1, MAX_VALUE + 1}));
+		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{2, MAX_VALUE + 1}));
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(MAX_VALUE + 1));
+		assertEquals(2, scan(ipred).size());
+
+		// 删除通过IndexScan找到的记录，两个索引项只删掉对应的那一个
+		IndexScan scan = new IndexScan(tid, index, ipred);
+		scan.open();
+		Tuple found = scan.next();
+		scan.close();
+		Database.getBufferPool().deleteTuple(tid, found);
+		List<List<Integer>> left = scan(ipred);
+		assertEquals(1, left.size());
+		assertNotEquals(SystemTestUtil.tupleToList(found), left.get(0));
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+	}
+
+	@Test
+	public void testAbort() throws Exception {
+		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[]{1, MAX_VALUE + 1}));
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		assertEquals(0, scan(new IndexPredicate(Op.EQUALS, new IntField(MAX_VALUE + 1))).size());
+		assertEquals(ROWS, scan(null).size());
+	}
+
+	@Test
+	public void testLoadSchema() throws Exception {
+		File dir = Files.createTempDirectory("schema").toFile();
+		dir.deleteOnExit();
+		File table = new File(dir, "indexed.dat");
+		table.deleteOnExit();
+		new File(dir, "indexed_b.idx").deleteOnExit();
+		HeapFileEncoder.convert(tuples, table, BufferPool.getPageSize(), 2);
+		File catalog = new File(dir, "catalog.txt");
+		catalog.deleteOnExit();
+		try(FileWriter w = new FileWriter(catalog)) {
+			w.write("indexed (a int pk, b int index)\n");
+		}
+
+		Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+		int tableId = Database.getCatalog().getTableId("indexed");
+		List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableId);
+		assertEquals(1, indexes.size());
+		assertEquals(1, indexes.get(0).getKeyField());
+		index = indexes.get(0);
+		int value = tuples.get(0).get(1);
+		assertEquals(expected(Op.EQUALS, value).size(), scan(new IndexPredicate(Op.EQUALS, new IntField(value))).size());
+	}
+
+	private static boolean usesIndexScan(OpIterator plan) {
+		if(plan instanceof IndexScan) {
+			return true;
+		}
+		if(plan instanceof Operator) {
+			for(OpIterator child : ((Operator) plan).getChildren()) {
+				if(usesIndexScan(child)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private OpIterator plan(Op op, int value) throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", op, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		Map<String, TableStats> stats = new HashMap<>();
+		String name = Database.getCatalog().getTableName(hf.getId());
+		stats.put(name, new TableStats(hf.getId(), 1000));
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	@Test
+	public void testOptimizerChoosesIndexScan() throws Exception {
+		int value = tuples.get(0).get(1);
+		OpIterator p = plan(Op.EQUALS, value);
+		assertTrue(usesIndexScan(p));
+		int count = 0;
+		p.open();
+		while(p.hasNext()) {
+			p.next();
+			count++;
+		}
+		p.close();
+		assertEquals(expected(Op.EQUALS, value).size(), count);
+
+		// 差不多要取回整个表的时候，顺序扫描更便宜
+		assertFalse(usesIndexScan(plan(Op.GREATER_THAN, 0)));
+		assertFalse(usesIndexScan(plan(Op.NOT_EQUALS, value)));
+	}
+
+	@Test
+	public void testSnapshotDoesNotUseIndex() throws Exception {
+		Database.getBufferPool().setMultiVersionEnabled(true);
+		int value = tuples.get(0).get(1);
+		int matching = expected(Op.EQUALS, value).size();
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		Database.getBufferPool().beginSnapshot(tid);
+
+		// 快照开始以后另一个事务删掉这个键的所有记录并提交
+		TransactionId writer = new TransactionId();
+		SeqScan ss = new SeqScan(writer, hf.getId());
+		ss.open();
+		List<Tuple> doomed = new ArrayList<>();
+		while(ss.hasNext()) {
+			Tuple t = ss.next();
+			if(((IntField) t.getField(1)).getValue() == value) {
+				doomed.add(t);
+			}
+		}
+		ss.close();
+		for(Tuple t : doomed) {
+			Database.getBufferPool().deleteTuple(writer, t);
+		}
+		Database.getBufferPool().transactionComplete(writer);
+
+		// 索引只有当前的状态，快照事务要按快照读整个表
+		OpIterator p = plan(Op.EQUALS, value);
+		assertFalse(usesIndexScan(p));
+		int count = 0;
+		p.open();
+		while(p.hasNext()) {
+			p.next();
+			count++;
+		}
+		p.close();
+		assertEquals(matching, count);
+
+		IndexScan scan = new IndexScan(tid, index, new IndexPredicate(Op.EQUALS, new IntField(value)));
+		try {
+			scan.open();
+			fail("an IndexScan should not open in a snapshot transaction");
+		} catch(DbException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
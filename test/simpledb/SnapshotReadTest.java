@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SnapshotReadTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+
+    private BufferPool bp;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+        bp = Database.getBufferPool();
+        bp.setMultiVersionEnabled(true);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A snapshot reader neither waits for a running writer nor sees its
+     * changes, and keeps seeing the old version after the writer commits.
+     */
+    @Test public void snapshotIgnoresConcurrentWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(1, 2));
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(ROWS, count(reader));
+        assertFalse(bp.holdsLock(reader, pid));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(ROWS, count(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(ROWS + 1, count(later));
+        bp.transactionComplete(reader);
+        bp.transactionComplete(later);
+    }
+
+    /**
+     * A writer can lock a page a snapshot reader has read.
+     */
+    @Test public void readerDoesNotBlockWriter() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(ROWS, count(reader));
+
+        TransactionId writer = new TransactionId();
+        DbFileIterator it = hf.iterator(writer);
+        it.open();
+        bp.deleteTuple(writer, it.next());
+        it.close();
+        bp.transactionComplete(writer, true);
+        assertEquals(ROWS, count(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Changes of a writer that aborts are never seen.
+     */
+    @Test public void abortedWriteIsNotSeen() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(writer, false);
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(ROWS, count(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Snapshot transactions are read-only.
+     */
+    @Test(expected = DbException.class) public void snapshotCannotWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        bp.getPage(reader, pid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
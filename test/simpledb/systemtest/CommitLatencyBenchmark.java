@@ -0,0 +1,77 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how long commit and abort take as the buffer pool grows. Every
+ * pool is first filled with clean pages, then each transaction dirties the
+ * same small number of pages and commits or aborts. Since both only visit the
+ * pages in the transaction's write set, the latency should stay flat while
+ * the pool grows. Commit time is dominated by forcing the log; abort does not
+ * touch the log and shows the buffer pool's own cost more directly. This is not a JUnit test; run it directly:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.CommitLatencyBenchmark
+ * </pre>
+ */
+public class CommitLatencyBenchmark {
+    private static final int[] POOL_PAGES = {1024, 4096, 16384};
+    private static final int PAGES_PER_TRANSACTION = 8;
+    private static final int TRANSACTIONS = 200;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%10s %12s %12s %12s%n", "pool", "txns", "us/commit", "us/abort");
+        for (int poolPages : POOL_PAGES) {
+            Database.reset();
+            HeapFile table = createEmptyHeapFile(poolPages);
+            BufferPool bp = Database.resetBufferPool(poolPages, ReplacementPolicy.LRU);
+
+            // 用干净页填满缓冲池
+            TransactionId fill = new TransactionId();
+            for (int i = 0; i < poolPages; i++) {
+                bp.getPage(fill, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+            }
+            bp.transactionComplete(fill);
+
+            long commit = run(bp, table, poolPages, true);
+            long abort = run(bp, table, poolPages, false);
+            System.out.printf("%10d %12d %12.1f %12.1f%n", poolPages, TRANSACTIONS,
+                    commit / 1e3 / TRANSACTIONS, abort / 1e3 / TRANSACTIONS);
+        }
+    }
+
+    /** Run TRANSACTIONS transactions and return the nanoseconds spent completing them. */
+    private static long run(BufferPool bp, HeapFile table, int poolPages, boolean commit) throws Exception {
+        long total = 0;
+        for (int c = 0; c < TRANSACTIONS; c++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < PAGES_PER_TRANSACTION; i++) {
+                int pgNo = (c * PAGES_PER_TRANSACTION + i) % poolPages;
+                bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_WRITE).markDirty(true, tid);
+            }
+            long start = System.nanoTime();
+            bp.transactionComplete(tid, commit);
+            total += System.nanoTime() - start;
+        }
+        return total;
+    }
+
+    /** Create a heap file of numPages empty pages; an empty HeapPage is all zeros. */
+    private static HeapFile createEmptyHeapFile(int numPages) throws Exception {
+        File f = File.createTempFile("commit", ".dat");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength((long) numPages * BufferPool.getPageSize());
+        }
+        return Utility.openHeapFile(2, f);
+    }
+}
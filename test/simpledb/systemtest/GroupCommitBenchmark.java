@@ -0,0 +1,89 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Measures commit throughput as the number of committing threads grows. Each
+ * thread runs short transactions that dirty a few pages of their own, so they
+ * never wait for each other's locks. With group commit, threads that commit
+ * while the log is being forced share the next fsync, so the fsyncs per commit
+ * should drop below one and throughput should grow with the thread count.
+ * This is not a JUnit test; run it directly:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.GroupCommitBenchmark
+ * </pre>
+ */
+public class GroupCommitBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8};
+    private static final int PAGES_PER_TRANSACTION = 4;
+    private static final int TRANSACTIONS_PER_THREAD = 100;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%10s %12s %12s %14s%n", "threads", "txns", "commits/s", "fsyncs/commit");
+        for (int threads : THREADS) {
+            Database.reset();
+            int numPages = threads * PAGES_PER_TRANSACTION;
+            HeapFile table = createEmptyHeapFile(numPages);
+            Database.resetBufferPool(Math.max(numPages, BufferPool.DEFAULT_PAGES));
+            LogFile log = Database.getLogFile();
+
+            long forces = log.getForceCount();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t * PAGES_PER_TRANSACTION;
+                workers.add(new Thread(() -> run(table, first)));
+            }
+            long start = System.nanoTime();
+            for (Thread w : workers) {
+                w.start();
+            }
+            for (Thread w : workers) {
+                w.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            int txns = threads * TRANSACTIONS_PER_THREAD;
+            System.out.printf("%10d %12d %12.0f %14.2f%n", threads, txns,
+                    txns / (elapsed / 1e9), (double) (log.getForceCount() - forces) / txns);
+        }
+    }
+
+    /** Run TRANSACTIONS_PER_THREAD transactions that dirty the pages starting at first. */
+    private static void run(HeapFile table, int first) {
+        try {
+            for (int c = 0; c < TRANSACTIONS_PER_THREAD; c++) {
+                Transaction t = new Transaction();
+                t.start();
+                for (int i = 0; i < PAGES_PER_TRANSACTION; i++) {
+                    HeapPageId pid = new HeapPageId(table.getId(), first + i);
+                    Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE)
+                            .markDirty(true, t.getId());
+                }
+                t.commit();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Create a heap file of numPages empty pages; an empty HeapPage is all zeros. */
+    private static HeapFile createEmptyHeapFile(int numPages) throws Exception {
+        File f = File.createTempFile("groupcommit", ".dat");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength((long) numPages * BufferPool.getPageSize());
+        }
+        return Utility.openHeapFile(2, f);
+    }
+}
@@ -118,6 +118,13 @@ public class LogTest extends SimpleDbTestBase {
         Database.getLogFile().recover();
     }
 
+    // the segment files of the log, in order
+    File[] logSegments() {
+        File[] segments = new File(".").listFiles((dir, name) -> name.matches("log\\.\\d+"));
+        Arrays.sort(segments);
+        return segments;
+    }
+
     // create an initial database with two empty tables
     // does *not* initiate log file recovery
     void setup()
@@ -435,6 +442,161 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestUpdateRecordSize()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // update records hold only the bytes that changed, so two small
+        // inserts log far less than one page
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().force();
+
+        long logBytes = 0;
+        for(File segment : logSegments())
+            logBytes += segment.length();
+        if(logBytes >= BufferPool.getPageSize())
+            throw new RuntimeException("LogTest: update records log whole pages");
+    }
+
+    @Test public void TestCommitDoesNotWritePages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // commit only logs (NO-FORCE); the committed page reaches the
+        // heap file when the buffer pool flushes it
+        doInsert(hf1, -1, 5);
+
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Database.getBufferPool().flushAllPages();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+
+        if(xp1.getNumEmptySlots() == xp2.getNumEmptySlots())
+            throw new RuntimeException("LogTest: committed page was not written by flushAllPages()");
+    }
+
+    @Test public void TestAbortCommitSamePageCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 writes a page and aborts, T2 then writes the same page and
+        // commits, crash: recovery must redo T1's rollback (its CLRs)
+        // rather than undo T1 again over T2's change
+
+        dontInsert(hf1, 3);
+        doInsert(hf1, -1, 4);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestTornTailCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a record torn by the crash is cut off by recovery, and records
+        // written after recovery follow the last complete one
+
+        File[] segments = logSegments();
+        try (RandomAccessFile log = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+            log.seek(log.length());
+            log.writeInt(1000);
+            log.writeByte(3);
+            log.writeLong(42);
+        }
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+
+        doInsert(hf1, -1, 3);
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, -1, 1);
+
+        // *** Test:
+        // a checkpoint does not write pages; recovery redoes the committed
+        // change from the dirty page table the checkpoint recorded
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 2);
+        // log t1's change without writing the page
+        Database.getBufferPool().flushPages(t1.getId());
+
+        HeapPage xp1 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Database.getLogFile().logCheckpoint();
+        HeapPage xp2 = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        if(xp1.getNumEmptySlots() != xp2.getNumEmptySlots())
+            throw new RuntimeException("LogTest: checkpoint wrote a page");
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 2, false);
+        t.commit();
+    }
+
+    @Test public void TestSegmentTruncation()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setSegmentSize(512);
+
+        // *** Test:
+        // once the page cleaner has written the committed pages back, a
+        // checkpoint deletes the log segments recovery no longer needs
+
+        for(int i = 1; i <= 10; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRow(hf1, t, i);
+            t.commit();
+        }
+        File first = logSegments()[0];
+
+        if(Database.getBufferPool().cleanPages() == 0)
+            throw new RuntimeException("LogTest: page cleaner wrote no old pages");
+        Database.getLogFile().logCheckpoint();
+        if(first.exists())
+            throw new RuntimeException("LogTest: checkpoint did not delete the first log segment");
+
+        doInsert(hf1, 11, -1);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for(int i = 1; i <= 11; i++)
+            look(hf1, t, i, true);
+        t.commit();
+    }
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
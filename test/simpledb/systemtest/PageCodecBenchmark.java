@@ -0,0 +1,138 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * Measures how fast full HeapPages are encoded (getPageData) and decoded (the
+ * HeapPage constructor). This is not a JUnit test; run it directly:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.PageCodecBenchmark
+ * </pre>
+ * For reference it also times the DataOutputStream encoding HeapPage used
+ * before it switched to ByteBuffer.
+ */
+public class PageCodecBenchmark {
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        run("2 ints", Utility.getTypes(2));
+        run("int+string", new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+    }
+
+    private static void run(String name, Type[] types) throws Exception {
+        TupleDesc td = new TupleDesc(types);
+        File f = File.createTempFile("codec", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int n = page.getNumEmptySlots();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < td.numFields(); j++) {
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    t.setField(j, new IntField(i * 31 + j));
+                } else {
+                    t.setField(j, new StringField("value-" + i, Type.STRING_LEN));
+                }
+            }
+            page.insertTuple(t);
+        }
+        byte[] data = page.getPageData();
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += page.getPageData().length;
+            sink += new HeapPage(pid, data).getNumEmptySlots();
+            sink += dataStreamEncode(page, td).length;
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += page.getPageData().length;
+        }
+        report(name, "encode", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += new HeapPage(pid, data).getNumEmptySlots();
+        }
+        report(name, "decode", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += dataStreamEncode(page, td).length;
+        }
+        report(name, "encode (stream)", System.nanoTime() - start);
+
+        // 防止JIT把没有用到结果的循环整个优化掉
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * The encoding HeapPage used before it switched to ByteBuffer.
+     */
+    private static byte[] dataStreamEncode(HeapPage page, TupleDesc td) throws IOException {
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        int numSlots = page.getNumEmptySlots() + countTuples(page);
+        int headerSize = (int) Math.ceil(numSlots / 8.0);
+        for (int i = 0; i < headerSize; i++) {
+            int b = 0;
+            for (int bit = 0; bit < 8 && i * 8 + bit < numSlots; bit++) {
+                if (page.isSlotUsed(i * 8 + bit)) {
+                    b |= 1 << bit;
+                }
+            }
+            dos.writeByte(b);
+        }
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+        }
+        byte[] zeroes = new byte[len - dos.size()];
+        dos.write(zeroes);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private static int countTuples(HeapPage page) {
+        int count = 0;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static void report(String name, String op, long nanos) {
+        double us = nanos / 1e3 / ITERATIONS;
+        System.out.printf("%-12s %-16s %10.2f us/page %12.0f pages/s%n", name, op, us, 1e6 / us);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.EvictionStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares the buffer pool replacement policies on the workloads used by the
+ * system tests. This is not a JUnit test; run it directly:
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.ReplacementPolicyBenchmark
+ * </pre>
+ * For every policy it reports the hit ratio, the average number of pages the
+ * policy examined per eviction and the throughput of
+ * <ul>
+ * <li> scan+lookup: B+ tree point lookups interleaved with full SeqScans of a
+ *      heap table four times the size of the pool (the case where one big scan
+ *      used to flush the B+ tree internal pages out of the LRU list)
+ * <li> repeated scan: SeqScans of a heap table slightly larger than the pool
+ * <li> hot hits: several threads calling getPage on pages that are all cached
+ * </ul>
+ */
+public class ReplacementPolicyBenchmark {
+    private static final int POOL_PAGES = 64;
+    private static final int ROUNDS = 20;
+    private static final int LOOKUPS_PER_ROUND = 200;
+    private static final int HOT_THREADS = 4;
+    private static final int HOT_GETS_PER_THREAD = 200000;
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 4 * 8 + 1);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, POOL_PAGES * 4 * tuplesPerPage, null, null);
+        HeapFile medium = SystemTestUtil.createRandomHeapFile(2, POOL_PAGES * 5 / 4 * tuplesPerPage, null, null);
+        BTreeFile index = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+
+        System.out.printf("%-8s %-15s %10s %10s %10s %10s %12s%n", "policy", "workload", "misses", "hit ratio", "avg scan", "ms", "ops/s");
+        for (ReplacementPolicy policy : ReplacementPolicy.values()) {
+            scanAndLookup(policy, big, index);
+            repeatedScan(policy, medium);
+            hotHits(policy, medium);
+        }
+    }
+
+    private static void scanAndLookup(ReplacementPolicy policy, HeapFile big, BTreeFile index) throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES, policy);
+        Random rand = new Random(0);
+        long ops = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < LOOKUPS_PER_ROUND; i++) {
+                IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(rand.nextInt(BTreeUtility.MAX_RAND_VALUE)));
+                DbFileIterator it = index.indexIterator(tid, ipred);
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                }
+                it.close();
+                ops++;
+            }
+            ops += scan(tid, big);
+            bp.transactionComplete(tid);
+        }
+        report(policy, "scan+lookup", bp, ops, System.nanoTime() - start);
+    }
+
+    private static void repeatedScan(ReplacementPolicy policy, HeapFile medium) throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES, policy);
+        long ops = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            TransactionId tid = new TransactionId();
+            ops += scan(tid, medium);
+            bp.transactionComplete(tid);
+        }
+        report(policy, "repeated scan", bp, ops, System.nanoTime() - start);
+    }
+
+    private static void hotHits(ReplacementPolicy policy, HeapFile table) throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES, policy);
+        TransactionId warm = new TransactionId();
+        for (int i = 0; i < POOL_PAGES / 2; i++) {
+            bp.getPage(warm, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(warm);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < HOT_THREADS; t++) {
+            final int seed = t;
+            threads.add(new Thread(() -> {
+                Random rand = new Random(seed);
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int i = 0; i < HOT_GETS_PER_THREAD; i++) {
+                        HeapPageId pid = new HeapPageId(table.getId(), rand.nextInt(POOL_PAGES / 2));
+                        try {
+                            bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        } catch (TransactionAbortedException e) {
+                            // getPage的随机加锁超时偶尔会在第一次尝试之前就到期，重试即可
+                            i--;
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    bp.transactionComplete(tid);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(policy, "hot hits", bp, (long) HOT_THREADS * HOT_GETS_PER_THREAD, System.nanoTime() - start);
+    }
+
+    private static long scan(TransactionId tid, HeapFile f) throws Exception {
+        long count = 0;
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    private static void report(ReplacementPolicy policy, String workload, BufferPool bp, long ops, long nanos) {
+        EvictionStats stats = bp.getEvictionStats();
+        double ms = nanos / 1e6;
+        System.out.printf("%-8s %-15s %10d %10.3f %10.2f %10.1f %12.0f%n", policy, workload, stats.getMisses(),
+                stats.getHitRatio(), stats.getAverageScanLength(), ms, ops / (ms / 1000));
+    }
+}